@@ -12,91 +12,532 @@
 
 package com.quantcast.measurement.service;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
+import android.content.res.Configuration;
 import android.database.sqlite.SQLiteDatabaseCorruptException;
+import android.os.Build;
+import android.os.SystemClock;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
-class QCDataManager {
+class QCDataManager implements QCNotificationListener {
 
     private static final QCLog.Tag TAG = new QCLog.Tag(QCDataManager.class);
 
     private static final int MAX_UPLOAD_SIZE = 200;
     private static final int MIN_UPLOAD_SIZE = 3;
     static final int DEFAULT_UPLOAD_EVENT_COUNT = 25;
+    static final int DEFAULT_BATCH_SIZE = 50;
+    static final long DEFAULT_BATCH_LINGER_TIME = 1000;  //1 second
+    static final long DEFAULT_MAX_STORED_EVENTS = 10000;
+    static final long DEFAULT_MAX_STORED_BYTES = 5 * 1024 * 1024;  //5 MB
+    static final long MIN_STORED_BYTES = 64 * 1024;  //64 KB
+    //once over a storage limit the backlog is cut to this share of it, so the next writes don't evict again
+    private static final int EVICTION_TARGET_PERCENT = 80;
+    //a backlog drain stops once it has sent this much stored event data or run this long, the rest waits for the next trigger
+    static final long DEFAULT_MAX_DRAIN_BYTES = 1024 * 1024;  //1 MB
+    static final long DEFAULT_MAX_DRAIN_TIME = 1000 * 60 * 2;  //2 mins
+    //stored events are uploaded once the oldest has waited this long, even below the upload count
+    static final long DEFAULT_MAX_EVENT_AGE = 1000 * 60 * 30;  //30 mins
+    //uploads triggered by the event count are spaced at least this far apart, forced uploads are not held back
+    static final long DEFAULT_MIN_UPLOAD_INTERVAL = 1000 * 15;  //15 seconds
+
+    //evicted first to last, session events are never evicted
+    private static final int[] EVICTION_ORDER = {QCEvent.QC_PRIORITY_LOW, QCEvent.QC_PRIORITY_NORMAL};
 
     private long m_eventCount;
     private final QCDataUploader m_uploader;
     private int m_uploadCount;
     private int m_maxUploadCount;
+    //0 uses m_uploadCount on metered networks too
+    private int m_meteredUploadCount;
+    private boolean m_uploadsOnlyWhenUnmetered;
+    private boolean m_wasConnected;
+    private boolean m_wasUnmetered;
 
     private boolean m_isUploading;
+    //an upload was due before any policy had loaded
+    private boolean m_uploadWaitingForPolicy;
+
+    //backlog drain, one batch per handler message so newly logged events are handled in between
+    private final Runnable m_drainRunnable;
+    private QCPolicy m_drainPolicy;
+    private boolean m_drainScheduled;
+    private int m_lastBatchSize;
+    private long m_drainStartTime;
+    private long m_drainedBytes;
+    private long m_maxDrainBytes;
+    private long m_maxDrainTime;
+
+    //times are SystemClock.elapsedRealtime so ages keep counting while the device sleeps.  The handler's delays
+    //stop in deep sleep, so a timed post can only run late and checks the deadline again when it does
+    private final Runnable m_timedUploadRunnable;
+    private long m_timedUploadTime;
+    private long m_oldestEventTime;
+    private long m_lastUploadTime;
+
+    private final QCUploadSizer m_sizer;
+    private final QCUploadBackoff m_backoff;
+    private final Runnable m_retryRunnable;
+    private QCPolicy m_retryPolicy;
+    private boolean m_retryScheduled;
+
+    private final QCEventStore m_store;
 
-    private final QCDatabaseDAO m_database;
+    //events waiting to be group committed to the database
+    private final List<QCEvent> m_pendingEvents;
+    private QCPolicy m_pendingPolicy;
+    private boolean m_pendingForceUpload;
+    private boolean m_pendingSessionEvent;
+    private boolean m_flushScheduled;
+    private int m_maxBatchSize;
+    private long m_maxBatchLingerTime;
+    private final Runnable m_flushRunnable;
 
+    private long m_maxStoredEvents;
+    private long m_maxStoredBytes;
+    private final long[] m_evictedEvents;
 
-    QCDataManager(Context context) {
-        m_database = new QCDatabaseDAO(context);
+    private final Context m_context;
+    //registered with the context for the life of this manager, removed again in shutdown
+    private ComponentCallbacks m_trimMemoryCallback;
+
+
+    QCDataManager(Context context, boolean useEventLog) {
+        m_context = context;
+        m_store = useEventLog ? new QCSegmentLogStore(context) : new QCDatabaseDAO(context);
         m_uploader = new QCDataUploader();
         m_uploadCount = DEFAULT_UPLOAD_EVENT_COUNT;
         m_maxUploadCount = MAX_UPLOAD_SIZE;
-        m_eventCount = m_database.numberOfEvents();
+        m_eventCount = m_store.count();
         m_isUploading = false;
+        m_pendingEvents = new ArrayList<QCEvent>();
+        m_maxBatchSize = DEFAULT_BATCH_SIZE;
+        m_maxBatchLingerTime = DEFAULT_BATCH_LINGER_TIME;
+        m_maxStoredEvents = DEFAULT_MAX_STORED_EVENTS;
+        m_maxStoredBytes = DEFAULT_MAX_STORED_BYTES;
+        m_maxDrainBytes = DEFAULT_MAX_DRAIN_BYTES;
+        m_maxDrainTime = DEFAULT_MAX_DRAIN_TIME;
+        m_evictedEvents = new long[QCEvent.QC_PRIORITY_SESSION + 1];
+        m_flushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                flushEvents();
+            }
+        };
+        m_drainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                m_drainScheduled = false;
+                drainEvents(m_drainPolicy);
+            }
+        };
+        m_timedUploadRunnable = new Runnable() {
+            @Override
+            public void run() {
+                //an earlier post may have been superseded by a later time, which has its own post
+                if (m_timedUploadTime == 0 || SystemClock.elapsedRealtime() < m_timedUploadTime) return;
+                m_timedUploadTime = 0;
+                timedUpload();
+            }
+        };
+        m_oldestEventTime = m_eventCount > 0 ? oldestStoredEventTime() : 0;
+        m_sizer = new QCUploadSizer(MAX_UPLOAD_SIZE);
+        m_backoff = new QCUploadBackoff(context);
+        m_retryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                m_retryScheduled = false;
+                if (m_eventCount > 0 && QCReachability.isConnected(m_context) && canUploadOnCurrentNetwork()) {
+                    uploadEvents(m_retryPolicy);
+                }
+            }
+        };
+        registerTrimMemoryCallback();
+        m_wasConnected = QCReachability.isConnected(context);
+        m_wasUnmetered = m_wasConnected && !QCReachability.isMetered(context);
+        QCNotificationCenter.INSTANCE.addListener(QCReachability.QC_NOTIF_REACHABILITY_CHANGED, this);
+    }
+
+    @Override
+    public void notificationCallback(String notificationName, Object o) {
+        if (QCReachability.QC_NOTIF_REACHABILITY_CHANGED.equals(notificationName)) {
+            onConnectivityChanged();
+        }
+    }
+
+    //uploads anything that piled up as soon as the network comes back, or moves onto an unmetered network
+    private void onConnectivityChanged() {
+        boolean connected = QCReachability.isConnected(m_context);
+        boolean unmetered = connected && !QCReachability.isMetered(m_context);
+        boolean reconnected = connected && !m_wasConnected;
+        boolean becameUnmetered = unmetered && !m_wasUnmetered;
+        m_wasConnected = connected;
+        m_wasUnmetered = unmetered;
+        //m_pendingPolicy is the policy the newest event was logged under
+        if ((reconnected || becameUnmetered) && m_pendingPolicy != null && canUploadOnCurrentNetwork()) {
+            writePendingEvents();
+            if (m_eventCount > 0) {
+                QCLog.i(TAG, "Network available, uploading " + m_eventCount + " events");
+                uploadEvents(m_pendingPolicy);
+            }
+        }
+    }
+
+    //the database connection stays open between writes, give it back when the system is low on memory
+    @TargetApi(14)
+    private void registerTrimMemoryCallback() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) return;
+
+        m_trimMemoryCallback = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_BACKGROUND) {
+                    releaseDatabase();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                releaseDatabase();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        };
+        m_context.registerComponentCallbacks(m_trimMemoryCallback);
+    }
+
+    //called when the session is cleared and this manager is dropped, a new one is created on the next start
+    @TargetApi(14)
+    void shutdown() {
+        QCNotificationCenter.INSTANCE.removeListener(QCReachability.QC_NOTIF_REACHABILITY_CHANGED, this);
+        cancelScheduledWork();
+        if (m_trimMemoryCallback != null) {
+            m_context.unregisterComponentCallbacks(m_trimMemoryCallback);
+            m_trimMemoryCallback = null;
+        }
+        //close the connection or mapped segments so the next manager doesn't open the same files a second time
+        releaseDatabase();
+    }
+
+    //drops everything stored or waiting to be stored, used when the user opts out
+    void deleteEvents() {
+        dropPendingEvents();
+        cancelScheduledWork();
+        m_store.delete(m_context);
+        deleteStoredEvents(m_context);
+        m_eventCount = 0;
+        m_oldestEventTime = 0;
+    }
+
+    //removes both storage backends, the one not in use may still hold events from a run with the other setting
+    static void deleteStoredEvents(Context context) {
+        context.deleteDatabase(QCDatabaseDAO.NAME);
+        new QCSegmentLogStore(context).delete(context);
+    }
+
+    private void cancelScheduledWork() {
+        QCEventHandler handler = QCMeasurement.INSTANCE.getHandler();
+        handler.removeCallbacks(m_flushRunnable);
+        handler.removeCallbacks(m_drainRunnable);
+        handler.removeCallbacks(m_timedUploadRunnable);
+        handler.removeCallbacks(m_retryRunnable);
+        m_flushScheduled = false;
+        m_drainScheduled = false;
+        m_retryScheduled = false;
+        m_timedUploadTime = 0;
+    }
+
+    private void releaseDatabase() {
+        QCMeasurement.INSTANCE.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                writePendingEvents();
+                m_store.release();
+            }
+        });
     }
 
     void postEvent(QCEvent event, QCPolicy policy) {
         //if we are blacked out then we won't save anything
         if (policy != null && policy.isBlackedOut()) return;
+        //blacklisted parameters are dropped before they are written, upload still filters in case the policy changes
+        if (!event.applyBlacklist(policy)) return;
+
+        m_pendingEvents.add(event);
+        m_pendingPolicy = policy;
+        m_pendingForceUpload |= event.shouldForceUpload();
+        m_pendingSessionEvent |= event.getPriority() == QCEvent.QC_PRIORITY_SESSION;
+
+        if (m_pendingForceUpload || m_pendingEvents.size() >= m_maxBatchSize || m_maxBatchLingerTime <= 0) {
+            flushEvents();
+        } else if (!m_flushScheduled) {
+            //commit once the queue has drained, or after the linger time if it never does
+            m_flushScheduled = true;
+            QCEventHandler handler = QCMeasurement.INSTANCE.getHandler();
+            handler.postWhenIdle(m_flushRunnable);
+            handler.postDelayed(m_flushRunnable, m_maxBatchLingerTime);
+        }
+    }
+
+    void flushEvents() {
+        //whichever of the idle, delayed or early flush comes first cancels the others
+        if (m_flushScheduled) {
+            m_flushScheduled = false;
+            QCMeasurement.INSTANCE.getHandler().removeCallbacks(m_flushRunnable);
+        }
+        QCPolicy policy = m_pendingPolicy;
+        boolean forceUpload = m_pendingForceUpload;
+        boolean sessionEvent = m_pendingSessionEvent;
+        int written = writePendingEvents();
+        if (written > 0) {
+            QCLog.i(TAG, "Successfully wrote " + written + " events! total: " + m_eventCount);
+            if (policy != null && QCReachability.isConnected(m_context) && shouldUpload(forceUpload, sessionEvent)) {
+                uploadEvents(policy);
+            }
+        }
+    }
+
+    private boolean shouldUpload(boolean forceUpload, boolean sessionEvent) {
+        boolean metered = QCReachability.isMetered(m_context);
+        if (metered && m_uploadsOnlyWhenUnmetered) {
+            return forceUpload && sessionEvent;
+        }
+        if (forceUpload) return true;
 
-        boolean forceUpload = event.shouldForceUpload();
+        long now = SystemClock.elapsedRealtime();
+        boolean due = m_eventCount >= getUploadThreshold(metered)
+                || (m_oldestEventTime != 0 && now - m_oldestEventTime >= getMaxEventAge(m_pendingPolicy));
+        if (!due) return false;
+
+        long nextAllowed = m_lastUploadTime + getMinUploadInterval(m_pendingPolicy);
+        if (m_lastUploadTime > 0 && now < nextAllowed) {
+            scheduleTimedUpload(nextAllowed);
+            return false;
+        }
+        return true;
+    }
+
+    //runs when the oldest stored event has aged out or a held back upload is allowed to go
+    private void timedUpload() {
+        writePendingEvents();
+        QCPolicy policy = m_pendingPolicy;
+        if (policy == null || m_eventCount <= 0) return;
+
+        //if we're offline the reachability listener uploads when the network returns
+        if (QCReachability.isConnected(m_context) && shouldUpload(false, false)) {
+            uploadEvents(policy);
+        }
+        //an overdue backlog that couldn't go now is picked up by reconnects, retries and new writes rather than polling
+        long ageDeadline = m_oldestEventTime + getMaxEventAge(policy);
+        if (m_eventCount > 0 && m_oldestEventTime != 0 && ageDeadline > SystemClock.elapsedRealtime()) {
+            scheduleTimedUpload(ageDeadline);
+        }
+    }
+
+    private void scheduleTimedUpload(long time) {
+        if (m_timedUploadTime != 0 && m_timedUploadTime <= time) return;
+
+        m_timedUploadTime = time;
+        QCMeasurement.INSTANCE.getHandler().postDelayed(m_timedUploadRunnable, Math.max(0, time - SystemClock.elapsedRealtime()));
+    }
+
+    private long getMaxEventAge(QCPolicy policy) {
+        if (policy != null && policy.getMaxEventAge() != null) {
+            return policy.getMaxEventAge() * 1000;
+        }
+        return DEFAULT_MAX_EVENT_AGE;
+    }
+
+    private long getMinUploadInterval(QCPolicy policy) {
+        if (policy != null && policy.getMinUploadInterval() != null) {
+            return policy.getMinUploadInterval() * 1000;
+        }
+        return DEFAULT_MIN_UPLOAD_INTERVAL;
+    }
+
+    private boolean canUploadOnCurrentNetwork() {
+        return !m_uploadsOnlyWhenUnmetered || !QCReachability.isMetered(m_context);
+    }
+
+    void dropPendingEvents() {
+        m_pendingEvents.clear();
+        m_pendingForceUpload = false;
+        m_pendingSessionEvent = false;
+    }
+
+    private int writePendingEvents() {
+        if (m_pendingEvents.isEmpty()) return 0;
+
+        QCPolicy policy = m_pendingPolicy;
+        List<QCEvent> batch = new ArrayList<QCEvent>(m_pendingEvents);
+        dropPendingEvents();
         int written = 0;
+        long startTime = System.nanoTime();
         try {
-            written = m_database.writeEvents(Arrays.asList(event));
+            written = m_store.append(batch);
         } catch (SQLiteDatabaseCorruptException dbc) {
             QCLog.e(TAG, "DB Write error", dbc);
-            m_database.deleteDB(QCMeasurement.INSTANCE.getAppContext());
+            m_store.delete(m_context);
         } catch (OutOfMemoryError oom) {
             QCLog.e(TAG, "DB Write error", oom);
             System.gc();
         }
         if (written > 0) {
             m_eventCount += written;
-            QCLog.i(TAG, "Successfully wrote " + written + " events! total: " + m_eventCount);
-            if (policy != null && QCMeasurement.INSTANCE.isConnected() && (forceUpload || (m_eventCount >= m_uploadCount))) {
-                uploadEvents(policy);
+            QCLog.i(TAG, "Wrote " + written + " events in " + ((System.nanoTime() - startTime) / 1000) + "us");
+            if (m_oldestEventTime == 0) {
+                m_oldestEventTime = SystemClock.elapsedRealtime();
             }
+            scheduleTimedUpload(m_oldestEventTime + getMaxEventAge(policy));
+            enforceStorageLimits(policy);
         } else {
             QCLog.w(TAG, "DB Write canceled or nothing written");
         }
+        return written;
+    }
+
+    //keeps the local backlog bounded by dropping the oldest, least important events first
+    private void enforceStorageLimits(QCPolicy policy) {
+        long maxEvents = m_maxStoredEvents;
+        long maxBytes = m_maxStoredBytes;
+        if (policy != null && policy.getMaxStoredEvents() != null) {
+            maxEvents = Math.max(MAX_UPLOAD_SIZE, policy.getMaxStoredEvents());
+        }
+        if (policy != null && policy.getMaxStoredBytes() != null) {
+            maxBytes = Math.max(MIN_STORED_BYTES, policy.getMaxStoredBytes());
+        }
+        if (m_eventCount <= maxEvents && m_store.byteCount() <= maxBytes) return;
+
+        long targetEvents = maxEvents * EVICTION_TARGET_PERCENT / 100;
+        long targetBytes = maxBytes * EVICTION_TARGET_PERCENT / 100;
+
+        StringBuilder evicted = new StringBuilder();
+        try {
+            for (int priority : EVICTION_ORDER) {
+                int removed = m_store.evict(priority, targetEvents, targetBytes);
+                if (removed > 0) {
+                    m_evictedEvents[priority] += removed;
+                    m_eventCount = Math.max(0, m_eventCount - removed);
+                    evicted.append(" priority ").append(priority).append(": ").append(removed);
+                }
+            }
+        } catch (SQLiteDatabaseCorruptException dbc) {
+            QCLog.e(TAG, "DB eviction error", dbc);
+            m_store.delete(m_context);
+            m_eventCount = 0;
+            return;
+        }
+        if (evicted.length() > 0) {
+            //not logged as an sdk error event, that event would be stored and push a full store over the limit again
+            QCLog.w(TAG, "Storage limit reached, evicted" + evicted);
+        }
+    }
+
+    //when the oldest stored event was logged, on the elapsed realtime clock.  Every event carries its wall clock
+    //time in seconds, an event without one or from the future counts as logged now
+    private long oldestStoredEventTime() {
+        long now = SystemClock.elapsedRealtime();
+        try {
+            List<QCEvent> oldest = m_store.peek(1);
+            if (oldest.isEmpty()) return now;
+            String timestamp = oldest.get(0).getParameters().get(QCEvent.QC_TIMESTAMP_KEY);
+            if (timestamp == null) return now;
+            long age = System.currentTimeMillis() - Long.parseLong(timestamp) * 1000;
+            //before this boot comes out negative, 0 is kept to mean nothing is stored
+            long logged = now - Math.max(0, age);
+            return logged != 0 ? logged : -1;
+        } catch (NumberFormatException e) {
+            return now;
+        } catch (SQLiteDatabaseCorruptException dbc) {
+            QCLog.e(TAG, "DB read error", dbc);
+            return now;
+        }
     }
 
     void uploadEvents(QCPolicy policy) {
+        //a drain already in progress will pick up anything new on its next batch
+        if (m_drainScheduled) return;
+
+        m_drainStartTime = System.currentTimeMillis();
+        m_drainedBytes = 0;
+        drainEvents(policy);
+    }
+
+    //uploads one batch and, while there is a backlog and the network is up, queues the next one behind
+    //whatever is already waiting on the handler
+    private void drainEvents(QCPolicy policy) {
+        if (policy == null) return;
+
+        long bytesBefore = m_store.byteCount();
+        int removed = uploadBatch(policy);
+        if (removed <= 0) return;
+
+        m_drainedBytes += Math.max(0, bytesBefore - m_store.byteCount());
+        //a short batch means the backlog is cleared, what is left is new and can wait for the next trigger
+        if (removed < m_lastBatchSize || m_eventCount <= 0 || !QCReachability.isConnected(m_context)
+                || !canUploadOnCurrentNetwork()) return;
+
+        if (m_drainedBytes >= m_maxDrainBytes || System.currentTimeMillis() - m_drainStartTime >= m_maxDrainTime) {
+            QCLog.i(TAG, "Upload budget used, " + m_eventCount + " events left for later");
+            return;
+        }
+        m_drainPolicy = policy;
+        m_drainScheduled = true;
+        QCMeasurement.INSTANCE.getHandler().post(m_drainRunnable);
+    }
+
+    private int uploadBatch(QCPolicy policy) {
+        int removed = 0;
+        if (!policy.policyIsLoaded()) {
+            m_uploadWaitingForPolicy = true;
+        }
         //if we don't have a policy or are blacked out then we cant send this data
         if (policy.policyIsLoaded() && !policy.isBlackedOut() && !m_isUploading) {
+            if (!m_backoff.shouldAttempt()) {
+                QCLog.i(TAG, "Backing off after failed uploads, skipping upload");
+                return 0;
+            }
             m_isUploading = true;
+            m_lastUploadTime = SystemClock.elapsedRealtime();
+            //anything still waiting on a group commit should go out with this upload
+            writePendingEvents();
             QCLog.i(TAG, "Starting upload...");
             long startTime = System.currentTimeMillis();
-            int removed = 0;
             String uploadId = null;
             try {
-                SQLiteDatabase db = m_database.getWritableDatabase();
-                List<QCEvent> send = m_database.getEvents(db, m_maxUploadCount, policy);
-                uploadId = m_uploader.synchronousUploadEvents(send);
-                if (uploadId != null) {
-                    boolean success = m_database.removeEvents(db, send);
-                    if (success) {
-                        removed = send.size();
-                        QCLog.i(TAG, "Successfully upload " + removed + " events!");
+                if (m_store.count() > 0) {
+                    String networkType = currentNetworkType();
+                    m_lastBatchSize = m_sizer.getBatchSize(networkType, MIN_UPLOAD_SIZE, m_maxUploadCount);
+                    long uploadStart = System.currentTimeMillis();
+                    QCDataUploader.UploadResult result = m_uploader.synchronousUploadEvents(m_store, m_lastBatchSize, policy,
+                            m_backoff.shouldReportFailure());
+                    if (result != null) {
+                        m_sizer.onSuccess(networkType, result.eventCount, System.currentTimeMillis() - uploadStart,
+                                MIN_UPLOAD_SIZE, m_maxUploadCount);
+                        m_backoff.onSuccess();
+                        uploadId = result.uploadId;
+                        boolean success = m_store.ack(result.lastEventId);
+                        if (success) {
+                            removed = result.eventCount;
+                            QCLog.i(TAG, "Successfully upload " + removed + " events!");
+                        } else {
+                            QCLog.e(TAG, "Failed to remove " + result.eventCount + " events");
+                        }
                     } else {
-                        QCLog.e(TAG, "Failed to remove " + send.size() + " events");
+                        QCLog.e(TAG, "Failed to upload events");
+                        m_sizer.onFailure(networkType, MIN_UPLOAD_SIZE);
+                        scheduleRetry(policy, m_backoff.onFailure());
                     }
-                } else {
-                    QCLog.e(TAG, "Failed to upload " + send.size() + " events");
                 }
             } catch (SQLiteDatabaseCorruptException dbc) {
-                m_database.deleteDB(QCMeasurement.INSTANCE.getAppContext());
+                m_store.delete(m_context);
                 QCLog.e(TAG, "DB upload error", dbc);
             } catch (OutOfMemoryError oom) {
                 QCLog.e(TAG, "DB upload error", oom);
@@ -104,34 +545,113 @@ class QCDataManager {
             } catch (Throwable t) {
                 //cancel this call and move on
                 QCLog.e(TAG, "DB upload error", t);
-            } finally {
-                m_database.close();
             }
 
             if (removed > 0) {
                 m_eventCount = Math.max(0, m_eventCount - removed);
+                if (m_eventCount == 0) {
+                    m_oldestEventTime = 0;
+                } else {
+                    m_oldestEventTime = oldestStoredEventTime();
+                    scheduleTimedUpload(m_oldestEventTime + getMaxEventAge(policy));
+                }
                 QCMeasurement.INSTANCE.logLatency(uploadId, System.currentTimeMillis() - startTime);
             } else {
                 QCLog.w(TAG, "DB upload canceled or nothing removed");
             }
             m_isUploading = false;
         }
+        return removed;
+    }
+
+    //events logged before the first policy arrived are held in storage, send them now if an upload was due
+    void policyUpdated(QCPolicy policy) {
+        boolean waiting = m_uploadWaitingForPolicy;
+        m_uploadWaitingForPolicy = false;
+        if (!policy.policyIsLoaded() || policy.isBlackedOut()) return;
+
+        m_pendingPolicy = policy;
+        writePendingEvents();
+        if (m_eventCount > 0 && QCReachability.isConnected(m_context) && canUploadOnCurrentNetwork()
+                && (waiting || shouldUpload(false, false))) {
+            uploadEvents(policy);
+        }
+    }
+
+    //never wait for more events than the current network can take in one batch
+    private int getUploadThreshold(boolean metered) {
+        int uploadCount = metered && m_meteredUploadCount > 0 ? m_meteredUploadCount : m_uploadCount;
+        return Math.min(uploadCount, m_sizer.getBatchSize(currentNetworkType(), MIN_UPLOAD_SIZE, m_maxUploadCount));
+    }
+
+    private String currentNetworkType() {
+        return QCReachability.networkType(m_context);
+    }
+
+    private void scheduleRetry(QCPolicy policy, long delay) {
+        m_retryPolicy = policy;
+        if (m_retryScheduled) return;
+
+        QCLog.i(TAG, "Retrying upload in " + delay + "ms");
+        m_retryScheduled = true;
+        QCMeasurement.INSTANCE.getHandler().postDelayed(m_retryRunnable, delay);
     }
 
     void setUploadCount(int uploadCount) {
         m_uploadCount = Math.max(MIN_UPLOAD_SIZE, Math.min(m_maxUploadCount, uploadCount));
     }
 
+    void setMeteredUploadCount(int meteredUploadCount) {
+        if (meteredUploadCount <= 0) {
+            m_meteredUploadCount = 0;
+        } else {
+            m_meteredUploadCount = Math.max(MIN_UPLOAD_SIZE, Math.min(m_maxUploadCount, meteredUploadCount));
+        }
+    }
+
+    void setUploadsOnlyWhenUnmetered(boolean uploadsOnlyWhenUnmetered) {
+        m_uploadsOnlyWhenUnmetered = uploadsOnlyWhenUnmetered;
+    }
+
     void setMaxUploadCount(int maxUploadCount) {
         this.m_maxUploadCount = Math.max(MIN_UPLOAD_SIZE, maxUploadCount);
     }
 
+    void setMaxBatchSize(int maxBatchSize) {
+        m_maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    void setMaxBatchLingerTime(long maxBatchLingerTime) {
+        m_maxBatchLingerTime = Math.max(0, maxBatchLingerTime);
+    }
+
+    void setMaxStoredEvents(long maxStoredEvents) {
+        m_maxStoredEvents = Math.max(MAX_UPLOAD_SIZE, maxStoredEvents);
+    }
+
+    void setMaxStoredBytes(long maxStoredBytes) {
+        m_maxStoredBytes = Math.max(MIN_STORED_BYTES, maxStoredBytes);
+    }
+
+    //a drain always sends at least one batch, so a budget of 0 uploads a single batch per trigger
+    void setMaxDrainBytes(long maxDrainBytes) {
+        m_maxDrainBytes = Math.max(0, maxDrainBytes);
+    }
+
+    void setMaxDrainTime(long maxDrainTime) {
+        m_maxDrainTime = Math.max(0, maxDrainTime);
+    }
+
+    long getEvictedEventCount(int priority) {
+        return m_evictedEvents[priority];
+    }
+
     long getEventCount() {
-        return m_eventCount;
+        return m_eventCount + m_pendingEvents.size();
     }
 
-    QCDatabaseDAO getDataBase() {
-        return m_database;
+    QCEventStore getEventStore() {
+        return m_store;
     }
 
 }
@@ -12,22 +12,19 @@
 
 package com.quantcast.measurement.service;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HTTP;
-import org.json.JSONArray;
-import org.json.JSONException;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
+
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
 import java.net.UnknownHostException;
-import java.util.Collection;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 class QCDataUploader {
 
@@ -38,68 +35,187 @@ class QCDataUploader {
     static final String QC_EVENTS_KEY = "events";
 
     private static final String UPLOAD_URL_WITHOUT_SCHEME = "m.quantcount.com/mobile";
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    //below this many stored bytes the gzip header and cpu time cost more than they save
+    static final long MIN_COMPRESSION_SIZE = 1024;
+
+    static class UploadResult {
+        final String uploadId;
+        //id of the last event read from the store, everything through it can be acknowledged
+        final long lastEventId;
+        final int eventCount;
+
+        UploadResult(String uploadId, long lastEventId, int eventCount) {
+            this.uploadId = uploadId;
+            this.lastEventId = lastEventId;
+            this.eventCount = eventCount;
+        }
+    }
 
     //this method is synchronous.  Be sure to call from an AsyncTask or other background Thread
-    String synchronousUploadEvents(Collection<QCEvent> events) {
-        if (events == null || events.isEmpty()) return null;
+    //Events are read from the store and written straight into the request body one at a time,
+    //so only a single event is ever held in memory no matter how big the batch is.
+    UploadResult synchronousUploadEvents(QCEventStore store, int maxToSend, QCPolicy policy, boolean reportErrors) {
+        if (store == null || maxToSend <= 0) return null;
 
         String uploadId = QCUtility.generateUniqueId();
-
-        JSONObject upload = new JSONObject();
-        try {
-            upload.put(QC_UPLOAD_ID_KEY, uploadId);
-            upload.put(QC_QCV_KEY, QCUtility.API_VERSION);
-            upload.put(QCEvent.QC_APIKEY_KEY, QCMeasurement.INSTANCE.getApiKey());
-            upload.put(QCEvent.QC_NETWORKCODE_KEY, QCMeasurement.INSTANCE.getNetworkCode());
-            upload.put(QCEvent.QC_DEVICEID_KEY, QCMeasurement.INSTANCE.getDeviceId());
-            upload.put(QCEvent.QC_DEVICEOS_KEY, QCEvent.QC_DEVICEOS_VALUE);
-            upload.put(QCEvent.QC_PACKAGEID_KEY, QCMeasurement.INSTANCE.getPackageId());
-
-            JSONArray event = new JSONArray();
-            for (QCEvent e : events) {
-                event.put(new JSONObject(e.getParameters()));
-            }
-            upload.put(QC_EVENTS_KEY, event);
-        } catch (JSONException e) {
-            QCLog.e(TAG, "Error while encoding json.");
-            return null;
-        }
+        boolean compressed = shouldCompress(store, maxToSend);
+        EventStreamProducer producer = new EventStreamProducer(uploadId, store, maxToSend, policy, compressed);
 
         int code;
         String url = QCUtility.addScheme(UPLOAD_URL_WITHOUT_SCHEME);
-        final DefaultHttpClient defaultHttpClient = new DefaultHttpClient();
-        defaultHttpClient.getParams().setParameter(CoreProtocolPNames.USER_AGENT,
-                System.getProperty("http.agent"));
-        final BasicHttpContext localContext = new BasicHttpContext();
-
+        HttpURLConnection connection = null;
         try {
-            HttpPost post = new HttpPost(url);
-            post.setHeader("Content-Type", "application/json");
-            StringEntity se = new StringEntity(upload.toString(), HTTP.UTF_8);
-            post.setEntity(se);
-
-            HttpParams params = new BasicHttpParams();
-            params.setBooleanParameter("http.protocol.expect-continue", false);
-            post.setParams(params);
-
-            HttpResponse response = defaultHttpClient.execute(post, localContext);
-            code = response.getStatusLine().getStatusCode();
-        }catch (UnknownHostException uhe) {
+            connection = QCHttpTransport.INSTANCE.openConnection(url, "POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (compressed) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+
+            OutputStream output = connection.getOutputStream();
+            try {
+                producer.writeTo(output);
+            } finally {
+                output.close();
+            }
+            code = connection.getResponseCode();
+            QCHttpTransport.INSTANCE.release(connection);
+        } catch (SQLiteDatabaseCorruptException dbc) {
+            //let the data manager throw away the broken store
+            disconnect(connection);
+            throw dbc;
+        } catch (UnknownHostException uhe) {
             QCLog.e(TAG, "Not connected to Internet", uhe);
             //don't send this error because its ok if they don't have internet connection
+            disconnect(connection);
             return null;
         } catch (Exception e) {
             QCLog.e(TAG, "Could not upload events", e);
-            QCMeasurement.INSTANCE.logSDKError("json-upload-failure", e.toString(), null);
+            if (reportErrors) {
+                QCMeasurement.INSTANCE.logSDKError("json-upload-failure", e.toString(), null);
+            }
+            disconnect(connection);
             return null;
         }
 
         if (!isSuccessful(code)) {
-            uploadId = null;
             QCLog.e(TAG, "Events not sent to server. Response code: " + code);
-            QCMeasurement.INSTANCE.logSDKError("json-upload-failure", "Bad response from server. Response code: " + code, null);
+            if (reportErrors) {
+                QCMeasurement.INSTANCE.logSDKError("json-upload-failure", "Bad response from server. Response code: " + code, null);
+            }
+            return null;
+        }
+        if (producer.m_lastEventId < 0) return null;
+        return new UploadResult(uploadId, producer.m_lastEventId, producer.m_eventCount);
+    }
+
+    //a half written request can't be reused, so its connection is closed instead of pooled
+    private void disconnect(HttpURLConnection connection) {
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    static boolean shouldCompress(QCEventStore store, int maxToSend) {
+        return QuantcastClient.isUsingUploadCompression() && estimateUploadSize(store, maxToSend) >= MIN_COMPRESSION_SIZE;
+    }
+
+    //the stored parameter bytes for the events this upload will pick up
+    private static long estimateUploadSize(QCEventStore store, int maxToSend) {
+        long count = store.count();
+        if (count <= 0) return 0;
+        return store.byteCount() * Math.min(count, maxToSend) / count;
+    }
+
+    //writes the upload envelope by hand so the JSON is never built up as a tree or a String
+    static class EventStreamProducer implements QCEventStore.EventVisitor {
+
+        private final String m_uploadId;
+        private final QCEventStore m_store;
+        private final int m_maxToSend;
+        private final QCPolicy m_policy;
+        private final boolean m_compressed;
+
+        private Writer m_writer;
+        private long m_lastEventId;
+        private int m_eventCount;
+        private int m_writtenCount;
+
+        EventStreamProducer(String uploadId, QCEventStore store, int maxToSend, QCPolicy policy, boolean compressed) {
+            m_uploadId = uploadId;
+            m_store = store;
+            m_maxToSend = maxToSend;
+            m_policy = policy;
+            m_compressed = compressed;
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            m_lastEventId = -1;
+            m_eventCount = 0;
+            m_writtenCount = 0;
+            //the deflater works on the stream as it is written so the payload is never held twice
+            GZIPOutputStream gzip = null;
+            if (m_compressed) {
+                gzip = new GZIPOutputStream(outputStream, WRITE_BUFFER_SIZE);
+                outputStream = gzip;
+            }
+            m_writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"), WRITE_BUFFER_SIZE);
+
+            m_writer.write('{');
+            boolean first = writeField(m_writer, QC_UPLOAD_ID_KEY, m_uploadId, true);
+            first = writeField(m_writer, QC_QCV_KEY, QCUtility.API_VERSION, first);
+            first = writeField(m_writer, QCEvent.QC_APIKEY_KEY, QCMeasurement.INSTANCE.getApiKey(), first);
+            first = writeField(m_writer, QCEvent.QC_NETWORKCODE_KEY, QCMeasurement.INSTANCE.getNetworkCode(), first);
+            first = writeField(m_writer, QCEvent.QC_DEVICEID_KEY, QCMeasurement.INSTANCE.getDeviceId(), first);
+            first = writeField(m_writer, QCEvent.QC_DEVICEOS_KEY, QCEvent.QC_DEVICEOS_VALUE, first);
+            first = writeField(m_writer, QCEvent.QC_PACKAGEID_KEY, QCMeasurement.INSTANCE.getPackageId(), first);
+            if (!first) {
+                m_writer.write(',');
+            }
+            m_writer.write(JSONObject.quote(QC_EVENTS_KEY));
+            m_writer.write(":[");
+            m_store.peek(m_maxToSend, this);
+            m_writer.write("]}");
+            m_writer.flush();
+            if (gzip != null) {
+                //writes the gzip trailer without closing the connection's stream
+                gzip.finish();
+            }
+            m_writer = null;
+        }
+
+        @Override
+        public void visit(QCEvent event) throws IOException {
+            m_lastEventId = Long.parseLong(event.getEventId());
+            m_eventCount++;
+            QCEvent checked = QCEvent.dataBaseEventWithPolicyCheck(event, m_policy);
+            if (checked == null) return;
+
+            if (m_writtenCount > 0) {
+                m_writer.write(',');
+            }
+            m_writer.write('{');
+            boolean first = true;
+            for (Map.Entry<String, String> entry : checked.getParameters().entrySet()) {
+                first = writeField(m_writer, entry.getKey(), entry.getValue(), first);
+            }
+            m_writer.write('}');
+            m_writtenCount++;
+        }
+
+        //null values are skipped the same way JSONObject.put drops them
+        private static boolean writeField(Writer writer, String key, String value, boolean first) throws IOException {
+            if (key == null || value == null) return first;
+            if (!first) {
+                writer.write(',');
+            }
+            writer.write(JSONObject.quote(key));
+            writer.write(':');
+            writer.write(JSONObject.quote(value));
+            return false;
         }
-        return uploadId;
     }
 
     private boolean isSuccessful(int code) {
@@ -11,6 +11,7 @@
  */
 package com.quantcast.measurement.service;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -18,42 +19,51 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.text.TextUtils;
+import android.os.Build;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
-class QCDatabaseDAO extends SQLiteOpenHelper {
+class QCDatabaseDAO extends SQLiteOpenHelper implements QCEventStore {
 
     private static final QCLog.Tag TAG = new QCLog.Tag(QCDatabaseDAO.class);
 
     static final String NAME = "Quantcast.db";
-    private static final int VERSION = 2;
+    private static final int VERSION = 3;
 
-    // Table that indexes events, one per event.
+    // Table of events, one row per event.  Parameters are stored together in a single blob.
     static final String EVENTS_TABLE = "events";
-    private static final String EVENTS_COLUMN_ID = "id";            // primary key
-    private static final String EVENTS_COLUMN_DOH = "doh";          // tables must have at least one column; this doesn't do anything other than that
+    private static final String EVENTS_COLUMN_ID = "id";                // primary key, also the upload order
+    private static final String EVENTS_COLUMN_PRIORITY = "priority";    // see QCEvent.getPriority()
+    private static final String EVENTS_COLUMN_PARAMETERS = "params";    // see QCEvent.encodeParameters()
 
-    // Table of event parameters
-    // Each event has a unique ID, which is the primary key (rowid) in the events table.
-    static final String EVENT_PARAMETERS_TABLE = "event";
-    private static final String EVENT_PARAMETERS_COLUMN_EVENT_ID = "eventid";
-    private static final String EVENT_PARAMETERS_COLUMN_NAME = "name";
-    private static final String EVENT_PARAMETERS_COLUMN_VALUE = "value";
+    private static final String EVENTS_PRIORITY_INDEX_NAME = "events_priority_idx";
 
-    private static final String EVENT_PARAMETERS_EVENT_ID_INDEX_NAME = "event_id_idx";
+    // Version 1 and 2 tables, only used to migrate old data.
+    // The events table held one row per event and the event table one row per parameter.
+    private static final String LEGACY_EVENTS_COLUMN_ID = "id";
+    private static final String LEGACY_EVENT_PARAMETERS_TABLE = "event";
+    private static final String LEGACY_EVENT_PARAMETERS_COLUMN_EVENT_ID = "eventid";
+    private static final String LEGACY_EVENT_PARAMETERS_COLUMN_NAME = "name";
+    private static final String LEGACY_EVENT_PARAMETERS_COLUMN_VALUE = "value";
+    private static final String MIGRATION_EVENTS_TABLE = "events_v3";
 
     private SQLiteDatabase m_openDB;
     private int m_numOpenDBs;
+    private long m_byteCount;   //size of all stored parameters, -1 when it has to be recounted
 
+    @TargetApi(16)
     QCDatabaseDAO(Context context) {
         super(context, NAME, null, VERSION);
         m_numOpenDBs = 0;
+        m_byteCount = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     @Override
@@ -61,21 +71,8 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         db.beginTransaction();
 
         try {
-            db.execSQL("PRAGMA foreign_keys = ON;");
-
-            db.execSQL("create table " + EVENTS_TABLE + " ("
-                    + EVENTS_COLUMN_ID + " integer primary key autoincrement,"
-                    + EVENTS_COLUMN_DOH + " integer"
-                    + ");");
-
-            db.execSQL("create table " + EVENT_PARAMETERS_TABLE + " ("
-                    + EVENT_PARAMETERS_COLUMN_EVENT_ID + " integer,"
-                    + EVENT_PARAMETERS_COLUMN_NAME + " varchar not null,"
-                    + EVENT_PARAMETERS_COLUMN_VALUE + " varchar not null,"
-                    + "FOREIGN KEY(" + EVENT_PARAMETERS_COLUMN_EVENT_ID + ") REFERENCES " + EVENTS_TABLE + "(" + EVENTS_COLUMN_ID + ")"
-                    + ");");
-
-            addEventIdIndex(db);
+            createEventsTable(db, EVENTS_TABLE);
+            addPriorityIndex(db);
 
             db.setTransactionSuccessful();
         } catch (SQLException e) {
@@ -85,6 +82,29 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         }
     }
 
+    @TargetApi(16)
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) return;
+
+        try {
+            boolean writeAheadLogging = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                writeAheadLogging = db.isWriteAheadLoggingEnabled();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                writeAheadLogging = db.enableWriteAheadLogging();
+            }
+            //with write-ahead logging a commit only has to sync at checkpoints and still can't corrupt the database,
+            //with a rollback journal it could, so the default full sync stays
+            if (writeAheadLogging) {
+                db.execSQL("PRAGMA synchronous = NORMAL");
+            }
+        } catch (SQLException e) {
+            QCLog.w(TAG, "Unable to tune database journaling", e);
+        }
+    }
+
     @Override
     public SQLiteDatabase getReadableDatabase() {
         return getWritableDatabase();
@@ -100,10 +120,16 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         return m_openDB;
     }
 
+    //the connection is kept open for the life of the process, this only releases the caller's reference
     @Override
     public void close() {
-        m_numOpenDBs--;
-        if (m_numOpenDBs == 0) {
+        m_numOpenDBs = Math.max(0, m_numOpenDBs - 1);
+    }
+
+    //closes the connection even if it is being kept open.  Used when trimming memory or opting out.
+    synchronized void releaseConnection() {
+        m_numOpenDBs = 0;
+        if (m_openDB != null) {
             super.close();
             m_openDB = null;
         }
@@ -113,97 +139,255 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         db.beginTransaction();
         try {
-            if (oldVersion <= 1) {
-                addEventIdIndex(db);
+            if (oldVersion <= 2) {
+                migrateToSingleRowEvents(db);
             }
+            db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
-    private static void addEventIdIndex(SQLiteDatabase db) {
-        String createIndex = "CREATE INDEX " + EVENT_PARAMETERS_EVENT_ID_INDEX_NAME + " ON " + EVENT_PARAMETERS_TABLE + " (" + EVENT_PARAMETERS_COLUMN_EVENT_ID + ")";
+    private static void createEventsTable(SQLiteDatabase db, String table) {
+        db.execSQL("create table " + table + " ("
+                + EVENTS_COLUMN_ID + " integer primary key autoincrement,"
+                + EVENTS_COLUMN_PRIORITY + " integer not null,"
+                + EVENTS_COLUMN_PARAMETERS + " blob not null"
+                + ");");
+    }
+
+    private static void addPriorityIndex(SQLiteDatabase db) {
+        String createIndex = "CREATE INDEX " + EVENTS_PRIORITY_INDEX_NAME + " ON " + EVENTS_TABLE + " (" + EVENTS_COLUMN_PRIORITY + ", " + EVENTS_COLUMN_ID + ")";
         db.execSQL(createIndex);
     }
 
+    //folds the one row per parameter tables of version 1 and 2 into one row per event, keeping the event ids
+    private static void migrateToSingleRowEvents(SQLiteDatabase db) {
+        createEventsTable(db, MIGRATION_EVENTS_TABLE);
+
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO " + MIGRATION_EVENTS_TABLE + " ( "
+                + EVENTS_COLUMN_ID + "," + EVENTS_COLUMN_PRIORITY + "," + EVENTS_COLUMN_PARAMETERS + " ) VALUES ( ? , ? , ? )");
+        String query = "SELECT ids." + LEGACY_EVENTS_COLUMN_ID + ", p." + LEGACY_EVENT_PARAMETERS_COLUMN_NAME + ", p." + LEGACY_EVENT_PARAMETERS_COLUMN_VALUE
+                + " FROM " + EVENTS_TABLE + " AS ids"
+                + " LEFT JOIN " + LEGACY_EVENT_PARAMETERS_TABLE + " AS p ON p." + LEGACY_EVENT_PARAMETERS_COLUMN_EVENT_ID + " = ids." + LEGACY_EVENTS_COLUMN_ID
+                + " ORDER BY ids." + LEGACY_EVENTS_COLUMN_ID;
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            long currentId = -1;
+            Map<String, String> params = null;
+            while (cursor.moveToNext()) {
+                long eventId = cursor.getLong(0);
+                if (params == null || eventId != currentId) {
+                    if (params != null) {
+                        insertMigratedEvent(insert, currentId, params);
+                    }
+                    currentId = eventId;
+                    params = new HashMap<String, String>();
+                }
+                if (!cursor.isNull(1)) {
+                    params.put(cursor.getString(1), cursor.getString(2));
+                }
+            }
+            if (params != null) {
+                insertMigratedEvent(insert, currentId, params);
+            }
+        } finally {
+            cursor.close();
+            insert.close();
+        }
 
-    synchronized List<QCEvent> getEvents(int maxToRetrieve, QCPolicy policy) {
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_EVENT_PARAMETERS_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
+        db.execSQL("ALTER TABLE " + MIGRATION_EVENTS_TABLE + " RENAME TO " + EVENTS_TABLE);
+        addPriorityIndex(db);
+    }
+
+    private static void insertMigratedEvent(SQLiteStatement insert, long eventId, Map<String, String> params) {
+        insert.clearBindings();
+        insert.bindLong(1, eventId);
+        insert.bindLong(2, QCEvent.priorityForEventType(params.get(QCEvent.QC_EVENT_KEY)));
+        insert.bindBlob(3, QCEvent.encodeParameters(params));
+        insert.executeInsert();
+    }
+
+    @Override
+    public int append(Collection<QCEvent> events) {
+        return writeEvents(events);
+    }
+
+    @Override
+    public List<QCEvent> peek(int maxToRetrieve) {
+        return getEvents(maxToRetrieve);
+    }
+
+    @Override
+    public int peek(int maxToRetrieve, EventVisitor visitor) throws IOException {
         SQLiteDatabase db = getReadableDatabase();
-        List<QCEvent> retval = getEvents(db, maxToRetrieve, policy);
+        try {
+            return getEvents(db, maxToRetrieve, visitor);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public boolean ack(long throughEventId) {
+        return removeEvents(throughEventId);
+    }
+
+    @Override
+    public long count() {
+        return numberOfEvents();
+    }
+
+    @Override
+    public synchronized long byteCount() {
+        if (m_byteCount < 0) {
+            SQLiteDatabase db = getReadableDatabase();
+            if (db != null && db.isOpen()) {
+                m_byteCount = DatabaseUtils.longForQuery(db, "SELECT ifnull(sum(length(" + EVENTS_COLUMN_PARAMETERS + ")), 0) FROM " + EVENTS_TABLE, null);
+            } else {
+                QCLog.e(TAG, "Database could not be opened.(7)");
+            }
+            close();
+        }
+        return Math.max(0, m_byteCount);
+    }
+
+    @Override
+    public synchronized int evict(int priority, long maxCount, long maxBytes) {
+        SQLiteDatabase db = getWritableDatabase();
+        int removed = evict(db, priority, maxCount, maxBytes);
         close();
-        return retval;
+        return removed;
     }
 
-    synchronized List<QCEvent> getEvents(SQLiteDatabase db, int maxToRetrieve, QCPolicy policy) {
-        ArrayList<QCEvent> events = null;
+    //removes the oldest events of one priority until the store fits, or there are none of that priority left
+    synchronized int evict(SQLiteDatabase db, int priority, long maxCount, long maxBytes) {
+        long excessCount = numberOfEvents() - maxCount;
+        long excessBytes = byteCount() - maxBytes;
+        if (excessCount <= 0 && excessBytes <= 0) return 0;
+
+        int removed = 0;
         if (db != null && db.isOpen()) {
-            events = new ArrayList<QCEvent>();
+            long removedBytes = 0;
+            long lastId = -1;
+            String[] columns = new String[]{EVENTS_COLUMN_ID, "length(" + EVENTS_COLUMN_PARAMETERS + ")"};
+            String[] selectionArgs = new String[]{Integer.toString(priority)};
+            Cursor cursor = db.query(EVENTS_TABLE, columns, EVENTS_COLUMN_PRIORITY + "=?", selectionArgs, null, null, EVENTS_COLUMN_ID);
+            try {
+                while ((removed < excessCount || removedBytes < excessBytes) && cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    removedBytes += cursor.getLong(1);
+                    removed++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (removed > 0) {
+                db.delete(EVENTS_TABLE, EVENTS_COLUMN_PRIORITY + "=? AND " + EVENTS_COLUMN_ID + "<=?",
+                        new String[]{Integer.toString(priority), Long.toString(lastId)});
+                if (m_byteCount >= 0) {
+                    m_byteCount = Math.max(0, m_byteCount - removedBytes);
+                }
+            }
+        } else {
+            QCLog.e(TAG, "Database could not be opened.(8)");
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        removeAllEvents();
+    }
+
+    @Override
+    public void delete(Context context) {
+        deleteDB(context);
+    }
+
+    @Override
+    public void release() {
+        releaseConnection();
+    }
+
+    synchronized List<QCEvent> getEvents(int maxToRetrieve) {
+        SQLiteDatabase db = getReadableDatabase();
+        List<QCEvent> retval = getEvents(db, maxToRetrieve);
+        close();
+        return retval;
+    }
+
+    synchronized List<QCEvent> getEvents(SQLiteDatabase db, int maxToRetrieve) {
+        final ArrayList<QCEvent> events = new ArrayList<QCEvent>();
+        try {
+            getEvents(db, maxToRetrieve, new EventVisitor() {
+                @Override
+                public void visit(QCEvent event) {
+                    events.add(event);
+                }
+            });
+        } catch (IOException ignored) {
+            //collecting into a list can't fail
+        }
+        return events;
+    }
 
+    synchronized int getEvents(SQLiteDatabase db, int maxToRetrieve, EventVisitor visitor) throws IOException {
+        int visited = 0;
+        if (db != null && db.isOpen()) {
             if (maxToRetrieve > 0) {
-                String[] columns = new String[]{EVENTS_COLUMN_ID};
+                String[] columns = new String[]{EVENTS_COLUMN_ID, EVENTS_COLUMN_PARAMETERS};
 
                 Cursor cursor = db.query(EVENTS_TABLE, columns, null, null, null, null, EVENTS_COLUMN_ID, Integer.toString(maxToRetrieve));
-
-                if (cursor.moveToFirst()) {
-                    do {
+                try {
+                    while (cursor.moveToNext()) {
                         long eventId = cursor.getLong(0);
-                        String[] eventColumns = new String[]{
-                                QCDatabaseDAO.EVENT_PARAMETERS_COLUMN_NAME,
-                                QCDatabaseDAO.EVENT_PARAMETERS_COLUMN_VALUE
-                        };
-                        String selection = QCDatabaseDAO.EVENT_PARAMETERS_COLUMN_EVENT_ID + "=?";
-                        String[] selectionArgs = new String[]{Long.toString(eventId)};
-
-                        Cursor eventCursor = db.query(QCDatabaseDAO.EVENT_PARAMETERS_TABLE,
-                                eventColumns,
-                                selection, selectionArgs,
-                                null, null, null);
-
-                        Map<String, String> params = new HashMap<String, String>();
-                        if (eventCursor.moveToFirst()) {
-                            do {
-                                params.put(eventCursor.getString(0), eventCursor.getString(1));
-                            } while (eventCursor.moveToNext());
-                        }
-
-                        eventCursor.close();
-                        events.add(QCEvent.dataBaseEventWithPolicyCheck(eventId, params, policy));
-                    } while (cursor.moveToNext());
+                        Map<String, String> params = QCEvent.decodeParameters(cursor.getBlob(1));
+                        visitor.visit(QCEvent.storedEvent(eventId, params));
+                        visited++;
+                    }
+                } finally {
+                    cursor.close();
                 }
-                cursor.close();
             }
         } else {
             QCLog.e(TAG, "Database could not be opened.(1)");
         }
-        return events;
+        return visited;
     }
 
-    synchronized boolean removeEvents(Collection<QCEvent> events) {
+    synchronized boolean removeEvents(long throughEventId) {
         SQLiteDatabase db = getWritableDatabase();
-        boolean success = removeEvents(db, events);
+        boolean success = removeEvents(db, throughEventId);
         close();
         return success;
     }
 
-    synchronized boolean removeEvents(SQLiteDatabase db, Collection<QCEvent> events) {
+    //events are always read oldest first, so a delivered batch is every event up to its last id
+    synchronized boolean removeEvents(SQLiteDatabase db, long throughEventId) {
         boolean removed = false;
         if (db != null && db.isOpen()) {
-            if (!events.isEmpty()) {
-                List<String> eventIds = new ArrayList<String>(events.size());
-                for (QCEvent event : events) {
-                    eventIds.add(event.getEventId());
-                }
-                String eventIdsString = TextUtils.join(",", eventIds);
+            String whereClause = EVENTS_COLUMN_ID + "<=?";
+            String[] whereArgs = new String[]{Long.toString(throughEventId)};
 
-                db.beginTransaction();
-                try {
-                    db.execSQL(generateDeleteClause(EVENTS_TABLE, EVENTS_COLUMN_ID, eventIdsString));
-                    db.execSQL(generateDeleteClause(EVENT_PARAMETERS_TABLE, EVENT_PARAMETERS_COLUMN_EVENT_ID, eventIdsString));
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                    removed = true;
+            db.beginTransaction();
+            try {
+                long removedBytes = 0;
+                if (m_byteCount >= 0) {
+                    removedBytes = DatabaseUtils.longForQuery(db, "SELECT ifnull(sum(length(" + EVENTS_COLUMN_PARAMETERS + ")), 0) FROM "
+                            + EVENTS_TABLE + " WHERE " + whereClause, whereArgs);
                 }
+                db.delete(EVENTS_TABLE, whereClause, whereArgs);
+                db.setTransactionSuccessful();
+                removed = true;
+                if (m_byteCount >= 0) {
+                    m_byteCount = Math.max(0, m_byteCount - removedBytes);
+                }
+            } finally {
+                db.endTransaction();
             }
         } else {
             QCLog.e(TAG, "Database could not be opened.(2)");
@@ -211,11 +395,6 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         return removed;
     }
 
-
-    private static String generateDeleteClause(String table, String column, String eventIds) {
-        return "delete from " + table + " where " + column + " in (" + eventIds + ");";
-    }
-
     synchronized void removeAllEvents() {
         SQLiteDatabase db = getWritableDatabase();
         removeAllEvents(db);
@@ -227,10 +406,10 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
             try {
                 db.beginTransaction();
                 // Remove all rows
-                db.delete(EVENT_PARAMETERS_TABLE, null, null);
                 db.delete(EVENTS_TABLE, null, null);
 
                 db.setTransactionSuccessful();
+                m_byteCount = 0;
             } catch (Exception e) {
                 QCLog.e(TAG, "Cannot clear events.", e);
             } finally {
@@ -252,40 +431,33 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         int numberWritten = 0;
         if (!events.isEmpty()) {
             if (db != null && db.isOpen()) {
-                final SQLiteStatement statement = db.compileStatement("INSERT INTO " + EVENTS_TABLE + " ( " + EVENTS_COLUMN_DOH + " ) VALUES ( ? )");
-                final SQLiteStatement paramsStatement = db.compileStatement("INSERT INTO " + EVENT_PARAMETERS_TABLE + " ( "
-                        + EVENT_PARAMETERS_COLUMN_EVENT_ID + "," + EVENT_PARAMETERS_COLUMN_NAME + "," + EVENT_PARAMETERS_COLUMN_VALUE
-                        + " ) VALUES ( ? , ? , ?)");
+                final SQLiteStatement statement = db.compileStatement("INSERT INTO " + EVENTS_TABLE + " ( "
+                        + EVENTS_COLUMN_PRIORITY + "," + EVENTS_COLUMN_PARAMETERS + " ) VALUES ( ? , ? )");
 
-
-                if (statement != null && paramsStatement != null) {
+                if (statement != null) {
+                    long bytesWritten = 0;
                     db.beginTransaction();
                     try {
                         for (QCEvent event : events) {
+                            byte[] params = QCEvent.encodeParameters(event.getParameters());
                             statement.clearBindings();
-                            statement.bindLong(1, 0);
-                            // rest of bindings
+                            statement.bindLong(1, event.getPriority());
+                            statement.bindBlob(2, params);
                             long eventId = statement.executeInsert();
                             if (eventId < 0) {
                                 QCLog.e(TAG, "Unable to save " + event + ". See DatabaseUtils logs for a detailed stack trace.");
                             } else {
-                                for (Entry<String, String> entry : event.getParameters().entrySet()) {
-                                    String name = entry.getKey();
-                                    String value = entry.getValue();
-                                    paramsStatement.clearBindings();
-                                    paramsStatement.bindLong(1, eventId);
-                                    paramsStatement.bindString(2, name);
-                                    paramsStatement.bindString(3, value);
-                                    paramsStatement.execute();
-                                }
+                                bytesWritten += params.length;
                                 numberWritten++;
                             }
                         }
                         db.setTransactionSuccessful();
+                        if (m_byteCount >= 0) {
+                            m_byteCount += bytesWritten;
+                        }
                     } finally {
                         db.endTransaction();
                         statement.close();
-                        paramsStatement.close();
                     }
                 }
             } else {
@@ -296,7 +468,8 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
     }
 
     synchronized void deleteDB(Context context) {
-        close();
+        releaseConnection();
+        m_byteCount = -1;
         context.deleteDatabase(NAME);
     }
 
@@ -0,0 +1,217 @@
+/**
+ * © Copyright 2012-2014 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License. Unauthorized use of this file constitutes
+ * copyright infringement and violation of law.
+ */
+package com.quantcast.measurement.service;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Point;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+import android.view.Display;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+
+/**
+ * The app and device attributes sent with every begin session event that don't change while the process runs.
+ * Built once on the event thread and reused until the configuration (which covers locale and screen size),
+ * the default locale or the network, and with it the carrier, changes.
+ */
+final class QCDeviceSnapshot {
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCDeviceSnapshot.class);
+
+    private static QCDeviceSnapshot cachedSnapshot;
+
+    //drops the snapshot when the network changes, the carrier may have changed with it
+    private static final QCNotificationListener NETWORK_LISTENER = new QCNotificationListener() {
+        @Override
+        public void notificationCallback(String notificationName, Object o) {
+            invalidate();
+        }
+    };
+    private static boolean listening;
+
+    private final Map<String, String> m_parameters;
+    private final Configuration m_configuration;
+    private final Locale m_locale;
+
+    private QCDeviceSnapshot(Map<String, String> parameters, Configuration configuration, Locale locale) {
+        m_parameters = Collections.unmodifiableMap(parameters);
+        m_configuration = configuration;
+        m_locale = locale;
+    }
+
+    //only call from the event thread
+    static QCDeviceSnapshot get(Context context) {
+        if (!listening) {
+            QCNotificationCenter.INSTANCE.addListener(QCReachability.QC_NOTIF_REACHABILITY_CHANGED, NETWORK_LISTENER);
+            listening = true;
+        }
+        QCDeviceSnapshot snapshot = cachedSnapshot;
+        if (snapshot == null || !snapshot.isCurrent(context)) {
+            long startTime = System.nanoTime();
+            snapshot = create(context);
+            cachedSnapshot = snapshot;
+            QCLog.i(TAG, "Built device snapshot in " + ((System.nanoTime() - startTime) / 1000) + "us");
+        }
+        return snapshot;
+    }
+
+    static void invalidate() {
+        cachedSnapshot = null;
+    }
+
+    Map<String, String> getParameters() {
+        return m_parameters;
+    }
+
+    private boolean isCurrent(Context context) {
+        Configuration current = context.getResources().getConfiguration();
+        return m_configuration.diff(current) == 0 && m_locale.equals(Locale.getDefault());
+    }
+
+    @TargetApi(13)
+    private static QCDeviceSnapshot create(Context context) {
+        Map<String, String> params = new HashMap<String, String>();
+
+        put(params, QCEvent.QC_APPNAME_KEY, QCUtility.getAppName(context));
+
+        String packageName = context.getPackageName();
+        put(params, QCEvent.QC_PACKAGEID_KEY, packageName);
+
+        PackageManager packageManager = context.getPackageManager();
+        if (packageManager != null) {
+            try {
+                PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
+                if (packageInfo != null) {
+                    put(params, QCEvent.QC_VERSION_KEY, packageInfo.versionName);
+                    put(params, QCEvent.QC_BUILDNUM_KEY, Integer.toString(packageInfo.versionCode));
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                        try {
+                            Field field = PackageInfo.class.getField("firstInstallTime");
+                            long timestamp = field.getLong(packageInfo);
+                            put(params, QCEvent.QC_INSTALLDATE_KEY, String.valueOf(timestamp));
+                        } catch (Exception e1) {
+                            File filesDir = context.getFilesDir();
+                            //error getting install time so get next best
+                            if (filesDir != null) {
+                                put(params, QCEvent.QC_INSTALLDATE_KEY, String.valueOf(filesDir.lastModified()));
+                            }
+                        }
+                    } else {
+                        File filesDir = context.getFilesDir();
+                        if (filesDir != null) {
+                            put(params, QCEvent.QC_INSTALLDATE_KEY, String.valueOf(filesDir.lastModified()));
+                        }
+                    }
+                }
+            } catch (PackageManager.NameNotFoundException nnfe) {
+                QCLog.e(TAG, "Unable to get application info for this app.", nnfe);
+            }
+        }
+
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        if (windowManager != null) {
+            Display d = windowManager.getDefaultDisplay();
+            String dims;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2) {
+                Point point = new Point();
+                d.getSize(point);
+                dims = String.format(Locale.US, "%dx%dx32", point.x, point.y);
+            } else {
+                //noinspection deprecation
+                dims = String.format(Locale.US, "%dx%dx32", d.getWidth(), d.getHeight());
+            }
+            put(params, QCEvent.QC_SCREENRES_KEY, dims);
+        }
+
+        TelephonyManager tel = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        if (tel != null) {
+            try {
+                String carrierInfo = tel.getNetworkOperator();
+                //no network?  then try the sim
+                if (carrierInfo == null || carrierInfo.length() <= 0) {
+                    carrierInfo = tel.getSimOperator();
+                }
+                if (carrierInfo != null && carrierInfo.length() > 0) {
+                    if (carrierInfo.length() <= 3) {
+                        put(params, QCEvent.QC_MCC_KEY, carrierInfo);
+                    } else {
+                        put(params, QCEvent.QC_MCC_KEY, carrierInfo.substring(0, 3));
+                        put(params, QCEvent.QC_MNC_KEY, carrierInfo.substring(3));
+                    }
+                }
+            } catch (SecurityException ignored) {
+            }
+
+            try {
+                String countryCode = tel.getNetworkCountryIso();
+                if (countryCode == null || countryCode.length() == 0) {
+                    countryCode = tel.getSimCountryIso();
+                }
+                if (countryCode != null && countryCode.length() > 0) {
+                    put(params, QCEvent.QC_COUNTRYCODE_KEY, countryCode);
+                }
+            } catch (SecurityException ignored) {
+            }
+
+            try {
+                String carrierName = tel.getNetworkOperatorName();
+                if (carrierName == null || carrierName.length() == 0) {
+                    carrierName = tel.getSimOperatorName();
+                }
+                if (carrierName != null && carrierName.length() > 0) {
+                    put(params, QCEvent.QC_CARRIERNAME_KEY, carrierName);
+                }
+            } catch (SecurityException ignored) {
+            }
+        }
+
+        Configuration configuration = new Configuration(context.getResources().getConfiguration());
+        int screenLayout = configuration.screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK;
+        boolean isTablet = screenLayout == 4 || screenLayout == Configuration.SCREENLAYOUT_SIZE_LARGE;
+        put(params, QCEvent.QC_DEVICETYPE_KEY, isTablet ? "Tablet" : "Handset");
+
+        put(params, QCEvent.QC_DEVICEOS_KEY, QCEvent.QC_DEVICEOS_VALUE);
+        put(params, QCEvent.QC_DEVICEMODEL_KEY, Build.MODEL);
+        put(params, QCEvent.QC_OSVERSION_KEY, Build.VERSION.RELEASE);
+        put(params, QCEvent.QC_MANUFACTURER_KEY, Build.MANUFACTURER);
+
+        Locale locale = Locale.getDefault();
+        try {
+            put(params, QCEvent.QC_LOCALECOUNTRY_KEY, locale.getISO3Country());
+            put(params, QCEvent.QC_LOCALELANG_KEY, locale.getISO3Language());
+        } catch (MissingResourceException mre) {
+            put(params, QCEvent.QC_LOCALECOUNTRY_KEY, "XX");
+            put(params, QCEvent.QC_LOCALELANG_KEY, "xx");
+        }
+
+        return new QCDeviceSnapshot(params, configuration, locale);
+    }
+
+    //same null handling as QCEvent.addParameter
+    private static void put(Map<String, String> params, String key, String value) {
+        if (value != null) {
+            params.put(key, value);
+        }
+    }
+}
@@ -12,24 +12,14 @@
 
 package com.quantcast.measurement.service;
 
-import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.res.Configuration;
-import android.graphics.Point;
-import android.os.Build;
-import android.telephony.TelephonyManager;
-import android.view.Display;
-import android.view.WindowManager;
-
-import java.io.File;
-import java.lang.reflect.Field;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.MissingResourceException;
 import java.util.TimeZone;
 
 class QCEvent {
@@ -92,7 +82,13 @@ class QCEvent {
     static final String QC_BEGIN_USERHASH_REASON = "userhash";
     static final String QC_BEGIN_ADPREF_REASON = "adprefchange";
 
-    @TargetApi(13)
+    //how important an event is to keep when local storage has to be trimmed
+    static final int QC_PRIORITY_LOW = 0;       //app and network defined events
+    static final int QC_PRIORITY_NORMAL = 1;    //resume, latency and sdk errors
+    static final int QC_PRIORITY_SESSION = 2;   //session load, pause and finished
+
+    private static final int PARAMETER_ENCODING_VERSION = 1;
+
     static QCEvent beginSessionEvent(Context context, String userhash,
                                      String reason, String session,
                                      String apiKey, String networkCode,
@@ -107,58 +103,9 @@ class QCEvent {
         e.addParameter(QC_NETWORKCODE_KEY, networkCode);
         e.addParameter(QC_DEVICEID_KEY, deviceId);
         e.addParameter(QC_APPID_KEY, QCUtility.getAppInstallId(context));
-        e.addParameter(QC_APPNAME_KEY, QCUtility.getAppName(context));
         e.addParameter(QC_USERHASH_KEY, userhash);
 
-        String packageName = context.getPackageName();
-        e.addParameter(QC_PACKAGEID_KEY, packageName);
-
-        PackageManager packageManager = context.getPackageManager();
-        if (packageManager != null) {
-            try {
-                PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
-                if (packageInfo != null) {
-                    e.addParameter(QC_VERSION_KEY, packageInfo.versionName);
-                    e.addParameter(QC_BUILDNUM_KEY, Integer.toString(packageInfo.versionCode));
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-                        try {
-                            Field field = PackageInfo.class.getField("firstInstallTime");
-                            long timestamp = field.getLong(packageInfo);
-                            e.addParameter(QC_INSTALLDATE_KEY, String.valueOf(timestamp));
-                        } catch (Exception e1) {
-                            File filesDir = context.getFilesDir();
-                            //error getting install time so get next best
-                            if (filesDir != null) {
-                                e.addParameter(QC_INSTALLDATE_KEY, String.valueOf(filesDir.lastModified()));
-                            }
-                        }
-                    } else {
-                        File filesDir = context.getFilesDir();
-                        if (filesDir != null) {
-                            e.addParameter(QC_INSTALLDATE_KEY, String.valueOf(filesDir.lastModified()));
-                        }
-                    }
-                }
-            } catch (PackageManager.NameNotFoundException nnfe) {
-                QCLog.e(TAG, "Unable to get application info for this app.", nnfe);
-            }
-        }
-
-        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        if (windowManager != null) {
-            Display d = windowManager.getDefaultDisplay();
-            String dims;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2) {
-                Point point = new Point();
-                d.getSize(point);
-                dims = String.format(Locale.US, "%dx%dx32", point.x, point.y);
-            } else {
-                //noinspection deprecation
-                dims = String.format(Locale.US, "%dx%dx32", d.getWidth(), d.getHeight());
-            }
-            e.addParameter(QC_SCREENRES_KEY, dims);
-        }
-
+        e.addParameters(QCDeviceSnapshot.get(context).getParameters());
 
         TimeZone tz = TimeZone.getDefault();
         Date now = new Date();
@@ -168,66 +115,6 @@ class QCEvent {
 
         e.addParameter(QC_TIMEZONE_KEY, Long.toString(tzo));
 
-        TelephonyManager tel = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        if (tel != null) {
-            try {
-                String carrierInfo = tel.getNetworkOperator();
-                //no network?  then try the sim
-                if (carrierInfo == null || carrierInfo.length() <= 0) {
-                    carrierInfo = tel.getSimOperator();
-                }
-                if (carrierInfo != null && carrierInfo.length() > 0) {
-                    if (carrierInfo.length() <= 3) {
-                        e.addParameter(QC_MCC_KEY, carrierInfo);
-                    } else {
-                        e.addParameter(QC_MCC_KEY, carrierInfo.substring(0, 3));
-                        e.addParameter(QC_MNC_KEY, carrierInfo.substring(3));
-                    }
-                }
-            } catch (SecurityException ignored) {
-            }
-
-            try {
-                String countryCode = tel.getNetworkCountryIso();
-                if (countryCode == null || countryCode.length() == 0) {
-                    countryCode = tel.getSimCountryIso();
-                }
-                if (countryCode != null && countryCode.length() > 0) {
-                    e.addParameter(QC_COUNTRYCODE_KEY, countryCode);
-                }
-            } catch (SecurityException ignored) {
-            }
-
-            try {
-                String carrierName = tel.getNetworkOperatorName();
-                if (carrierName == null || carrierName.length() == 0) {
-                    carrierName = tel.getSimOperatorName();
-                }
-                if (carrierName != null && carrierName.length() > 0) {
-                    e.addParameter(QC_CARRIERNAME_KEY, carrierName);
-                }
-            } catch (SecurityException ignored) {
-            }
-        }
-
-        int screenLayout = context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK;
-        boolean isTablet = screenLayout == 4 || screenLayout == Configuration.SCREENLAYOUT_SIZE_LARGE;
-        e.addParameter(QC_DEVICETYPE_KEY, isTablet ? "Tablet" : "Handset");
-
-        e.addParameter(QC_DEVICEOS_KEY, QC_DEVICEOS_VALUE);
-        e.addParameter(QC_DEVICEMODEL_KEY, Build.MODEL);
-        e.addParameter(QC_OSVERSION_KEY, Build.VERSION.RELEASE);
-        e.addParameter(QC_MANUFACTURER_KEY, Build.MANUFACTURER);
-
-        Locale locale = Locale.getDefault();
-        try {
-            e.addParameter(QC_LOCALECOUNTRY_KEY, locale.getISO3Country());
-            e.addParameter(QC_LOCALELANG_KEY, locale.getISO3Language());
-        } catch (MissingResourceException mre) {
-            e.addParameter(QC_LOCALECOUNTRY_KEY, "XX");
-            e.addParameter(QC_LOCALELANG_KEY, "xx");
-        }
-
         e.addLabels(appLabels);
         e.addNetworkLabels(networkLabel);
         return e;
@@ -320,26 +207,30 @@ class QCEvent {
         return e;
     }
 
-    static QCEvent dataBaseEventWithPolicyCheck(Long eventID, Map<String, String> params, QCPolicy policy) {
+    static QCEvent storedEvent(long eventId, Map<String, String> params) {
+        QCEvent e = new QCEvent(eventId);
+        e.addParameters(params);
+        return e;
+    }
+
+    //blacklisted keys are normally stripped before storage, this catches events stored under an older policy
+    static QCEvent dataBaseEventWithPolicyCheck(QCEvent storedEvent, QCPolicy policy) {
         //if we are blacked out or the event key is blacklisted, then we can't send any data to the servers
         if (policy == null || !policy.policyIsLoaded() || policy.isBlackedOut() || policy.isBlacklisted(QC_EVENT_KEY)) {
             return null;
         }
 
-
-        QCEvent e = new QCEvent(eventID);
+        Map<String, String> params = storedEvent.getParameters();
+        QCEvent e = new QCEvent(Long.valueOf(storedEvent.getEventId()));
 
         //salt if needed
-        if (policy.getSalt() != null) {
+        String salt = policy.getSalt();
+        if (salt != null) {
             if (params.containsKey(QC_DEVICEID_KEY)) {
-                String salted = params.get(QC_DEVICEID_KEY) + policy.getSalt();
-                String hashed = QCUtility.applyHash(salted);
-                params.put(QC_DEVICEID_KEY, hashed);
+                params.put(QC_DEVICEID_KEY, QCUtility.applySaltedHash(params.get(QC_DEVICEID_KEY), salt));
             }
             if (params.containsKey(QC_APPID_KEY)) {
-                String salted = params.get(QC_APPID_KEY) + policy.getSalt();
-                String hashed = QCUtility.applyHash(salted);
-                params.put(QC_APPID_KEY, hashed);
+                params.put(QC_APPID_KEY, QCUtility.applySaltedHash(params.get(QC_APPID_KEY), salt));
             }
         }
 
@@ -352,6 +243,110 @@ class QCEvent {
         return e;
     }
 
+    //strips parameters the policy will never let us send, so they aren't written to storage.
+    //Returns false if the whole event is blacklisted and shouldn't be stored at all.
+    boolean applyBlacklist(QCPolicy policy) {
+        if (policy == null || !policy.policyIsLoaded() || !policy.hasBlacklist()) return true;
+        if (policy.isBlacklisted(QC_EVENT_KEY)) return false;
+
+        for (Iterator<String> keys = m_parameters.keySet().iterator(); keys.hasNext(); ) {
+            if (policy.isBlacklisted(keys.next())) {
+                keys.remove();
+            }
+        }
+        return true;
+    }
+
+    static int priorityForEventType(String eventType) {
+        if (QC_EVENT_LOAD.equals(eventType) || QC_EVENT_PAUSE.equals(eventType) || QC_EVENT_FINISHED.equals(eventType)) {
+            return QC_PRIORITY_SESSION;
+        } else if (QC_EVENT_RESUME.equals(eventType) || QC_EVENT_LATENCY.equals(eventType) || QC_EVENT_SDKERROR.equals(eventType)) {
+            return QC_PRIORITY_NORMAL;
+        }
+        return QC_PRIORITY_LOW;
+    }
+
+    /*
+       Parameters are stored as a version byte, the parameter count, then each name and value
+       as a length prefixed UTF-8 string.  Counts and lengths are base 128 varints.
+     */
+    static byte[] encodeParameters(Map<String, String> params) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * (params.size() + 1));
+        out.write(PARAMETER_ENCODING_VERSION);
+        writeVarInt(out, params.size());
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    static Map<String, String> decodeParameters(byte[] encoded) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (encoded == null || encoded.length == 0 || encoded[0] != PARAMETER_ENCODING_VERSION) {
+            QCLog.e(TAG, "Unknown parameter encoding, dropping parameters.");
+            return params;
+        }
+        int[] position = new int[]{1};
+        try {
+            int count = readVarInt(encoded, position);
+            for (int i = 0; i < count; i++) {
+                String name = readString(encoded, position);
+                String value = readString(encoded, position);
+                params.put(name, value);
+            }
+        } catch (RuntimeException e) {
+            QCLog.e(TAG, "Truncated parameter encoding.", e);
+        }
+        return params;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        byte[] bytes;
+        try {
+            bytes = string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            bytes = string.getBytes();
+        }
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] encoded, int[] position) {
+        int length = readVarInt(encoded, position);
+        if (length < 0 || position[0] + length > encoded.length) {
+            throw new IndexOutOfBoundsException("String length " + length + " past end of parameters");
+        }
+        String string;
+        try {
+            string = new String(encoded, position[0], length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            string = new String(encoded, position[0], length);
+        }
+        position[0] += length;
+        return string;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] encoded, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = encoded[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 32);
+        return value;
+    }
+
     private final Map<String, String> m_parameters;
     private final String m_eventId;
     private boolean m_forceUpload;
@@ -403,6 +398,10 @@ class QCEvent {
         return m_eventId;
     }
 
+    int getPriority() {
+        return priorityForEventType(m_parameters.get(QC_EVENT_KEY));
+    }
+
     Map<String, String> getParameters() {
         return m_parameters;
     }
@@ -20,18 +20,23 @@ import android.os.Looper;
 import android.os.MessageQueue;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 class QCEventHandler extends HandlerThread {
     private static final QCLog.Tag TAG = new QCLog.Tag(QCEventHandler.class);
 
     private Handler m_Handler;
     private PowerManager.WakeLock m_wakelock;
+    private final List<Runnable> m_idleTasks;
 
     public QCEventHandler() {
         super("com.quantcast.event.handler", Process.THREAD_PRIORITY_BACKGROUND);
+        m_idleTasks = new ArrayList<Runnable>();
     }
 
     public void setContext(Context context) {
@@ -50,6 +55,41 @@ class QCEventHandler extends HandlerThread {
     }
 
     public boolean post(Runnable r) {
+        waitForHandler();
+        QCLog.i(TAG, "Posting event from queue");
+        //tagged with the unwrapped runnable like postDelayed
+        boolean success = m_Handler.postAtTime(new CatchAllRunnable(r), r, SystemClock.uptimeMillis());
+        if (m_wakelock != null && success) {
+            m_wakelock.acquire(30000);
+        }
+        return success;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        waitForHandler();
+        //the unwrapped runnable is the token so removeCallbacks can find the post again
+        return m_Handler.postAtTime(new CatchAllRunnable(r), r, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    //cancels posts of the runnable that haven't run yet
+    void removeCallbacks(Runnable r) {
+        waitForHandler();
+        m_Handler.removeCallbacksAndMessages(r);
+        synchronized (m_idleTasks) {
+            m_idleTasks.remove(r);
+        }
+    }
+
+    //runs the task once, the next time the queue has nothing left to process
+    void postWhenIdle(Runnable r) {
+        synchronized (m_idleTasks) {
+            if (!m_idleTasks.contains(r)) {
+                m_idleTasks.add(r);
+            }
+        }
+    }
+
+    private void waitForHandler() {
         if (m_Handler == null) {
             synchronized (this) {
                 while (m_Handler == null) {
@@ -59,12 +99,6 @@ class QCEventHandler extends HandlerThread {
                 }
             }
         }
-        QCLog.i(TAG, "Posting event from queue");
-        boolean success = m_Handler.post(new CatchAllRunnable(r));
-        if (m_wakelock != null && success) {
-            m_wakelock.acquire(30000);
-        }
-        return success;
     }
 
     @Override
@@ -75,6 +109,7 @@ class QCEventHandler extends HandlerThread {
         Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
             @Override
             public boolean queueIdle() {
+                runIdleTasks();
                 if (m_wakelock != null) {
                     m_wakelock.release();
                 }
@@ -86,6 +121,18 @@ class QCEventHandler extends HandlerThread {
         }
     }
 
+    private void runIdleTasks() {
+        List<Runnable> tasks;
+        synchronized (m_idleTasks) {
+            if (m_idleTasks.isEmpty()) return;
+            tasks = new ArrayList<Runnable>(m_idleTasks);
+            m_idleTasks.clear();
+        }
+        for (Runnable task : tasks) {
+            new CatchAllRunnable(task).run();
+        }
+    }
+
     private static class CatchAllRunnable implements Runnable {
         final Runnable m_delegate;
 
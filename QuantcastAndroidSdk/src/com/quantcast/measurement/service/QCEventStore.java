@@ -0,0 +1,61 @@
+/**
+ * © Copyright 2012-2014 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License. Unauthorized use of this file constitutes
+ * copyright infringement and violation of law.
+ */
+
+
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/*
+   Local FIFO of events waiting to be uploaded.  Events come back out of peek() in the order
+   they were appended, with their event id set and their parameters exactly as they were saved.
+   Policy checks are up to the caller.
+ */
+interface QCEventStore {
+
+    //returns the number of events saved
+    int append(Collection<QCEvent> events);
+
+    List<QCEvent> peek(int maxToRetrieve);
+
+    //hands the oldest events to the visitor one at a time without holding the batch in memory.
+    //Returns the number of events visited.
+    int peek(int maxToRetrieve, EventVisitor visitor) throws IOException;
+
+    //removes every event up to and including throughEventId, which have all been delivered
+    boolean ack(long throughEventId);
+
+    long count();
+
+    //total size of the stored event parameters
+    long byteCount();
+
+    //drops the oldest events of the given priority until the store is within both limits,
+    //or none of that priority are left.  Returns the number of events dropped.
+    int evict(int priority, long maxCount, long maxBytes);
+
+    void clear();
+
+    //removes everything the store has on disk
+    void delete(Context context);
+
+    //gives back any open files or connections, the store will reopen them as needed
+    void release();
+
+    interface EventVisitor {
+        void visit(QCEvent event) throws IOException;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * © Copyright 2012-2014 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License. Unauthorized use of this file constitutes
+ * copyright infringement and violation of law.
+ */
+package com.quantcast.measurement.service;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Shared HTTP transport for uploads and policy requests.  HttpURLConnection pools keep-alive
+ * connections per host and HTTPS reuses TLS sessions through the default socket factory, so every
+ * request should go through here and be finished with {@link #release(HttpURLConnection)}
+ * to hand its connection back to the pool.
+ */
+enum QCHttpTransport {
+    INSTANCE;
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCHttpTransport.class);
+
+    static final int CONNECT_TIMEOUT = 15 * 1000;
+    static final int READ_TIMEOUT = 30 * 1000;
+
+    private static final int DRAIN_BUFFER_SIZE = 1024;
+
+    QCHttpTransport() {
+        //connection pooling was broken before Froyo, reusing a closed connection would fail the next request
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    HttpURLConnection openConnection(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(true);
+        String userAgent = System.getProperty("http.agent");
+        if (userAgent != null) {
+            connection.setRequestProperty("User-Agent", userAgent);
+        }
+        return connection;
+    }
+
+    //reads whatever is left of the response and closes the stream.  The connection only goes back
+    //into the pool once its response has been fully consumed, disconnect() would close the socket.
+    void release(HttpURLConnection connection) {
+        if (connection == null) return;
+
+        InputStream input = null;
+        try {
+            input = connection.getInputStream();
+        } catch (IOException e) {
+            input = connection.getErrorStream();
+        }
+        if (input == null) return;
+
+        try {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (input.read(buffer) != -1) {
+                //discard
+            }
+        } catch (IOException e) {
+            QCLog.w(TAG, "Could not finish reading response", e);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
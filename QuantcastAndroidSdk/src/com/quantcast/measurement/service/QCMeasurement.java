@@ -54,8 +54,18 @@ enum QCMeasurement implements QCNotificationListener {
     private int m_numActiveContext;
 
     private int m_uploadCount;
+    private int m_meteredUploadCount;
+    private boolean m_uploadsOnlyWhenUnmetered;
+    private int m_maxBatchSize;
+    private long m_maxBatchLingerTime;
+    private long m_maxStoredEvents;
+    private long m_maxStoredBytes;
+    private long m_maxDrainBytes;
+    private long m_maxDrainTime;
 
     private boolean m_usesSecureConnection = false;
+    private boolean m_usesEventLog = false;
+    private boolean m_usesUploadCompression = false;
 
     private final QCEventHandler m_eventHandler;
 
@@ -68,6 +78,12 @@ enum QCMeasurement implements QCNotificationListener {
         m_numActiveContext = 0;
         m_optedOut = false;
         m_uploadCount = QCDataManager.DEFAULT_UPLOAD_EVENT_COUNT;
+        m_maxBatchSize = QCDataManager.DEFAULT_BATCH_SIZE;
+        m_maxBatchLingerTime = QCDataManager.DEFAULT_BATCH_LINGER_TIME;
+        m_maxStoredEvents = QCDataManager.DEFAULT_MAX_STORED_EVENTS;
+        m_maxStoredBytes = QCDataManager.DEFAULT_MAX_STORED_BYTES;
+        m_maxDrainBytes = QCDataManager.DEFAULT_MAX_DRAIN_BYTES;
+        m_maxDrainTime = QCDataManager.DEFAULT_MAX_DRAIN_TIME;
 
     }
 
@@ -124,8 +140,20 @@ enum QCMeasurement implements QCNotificationListener {
                             m_apiKey = apiKey;
                             m_networkCode = networkCode;
 
-                            m_manager = new QCDataManager(m_context);
+                            QCReachability.startMonitoring(m_context);
+                            if (m_manager != null) {
+                                m_manager.shutdown();
+                            }
+                            m_manager = new QCDataManager(m_context, m_usesEventLog);
                             m_manager.setUploadCount(m_uploadCount);
+                            m_manager.setMeteredUploadCount(m_meteredUploadCount);
+                            m_manager.setUploadsOnlyWhenUnmetered(m_uploadsOnlyWhenUnmetered);
+                            m_manager.setMaxBatchSize(m_maxBatchSize);
+                            m_manager.setMaxBatchLingerTime(m_maxBatchLingerTime);
+                            m_manager.setMaxStoredEvents(m_maxStoredEvents);
+                            m_manager.setMaxStoredBytes(m_maxStoredBytes);
+                            m_manager.setMaxDrainBytes(m_maxDrainBytes);
+                            m_manager.setMaxDrainTime(m_maxDrainTime);
                             m_policy = QCPolicy.getQuantcastPolicy(m_context, m_apiKey, m_networkCode, m_context.getPackageName(), isDirectedAtKids);
 
                             boolean newSession = checkSessionId(m_context);
@@ -293,6 +321,62 @@ enum QCMeasurement implements QCNotificationListener {
         }
     }
 
+    public final void setMeteredUploadEventCount(int meteredUploadEventCount) {
+        m_meteredUploadCount = meteredUploadEventCount;
+        if (isMeasurementActive()) {
+            m_manager.setMeteredUploadCount(meteredUploadEventCount);
+        }
+    }
+
+    public final void setUploadsOnlyWhenUnmetered(boolean uploadsOnlyWhenUnmetered) {
+        m_uploadsOnlyWhenUnmetered = uploadsOnlyWhenUnmetered;
+        if (isMeasurementActive()) {
+            m_manager.setUploadsOnlyWhenUnmetered(uploadsOnlyWhenUnmetered);
+        }
+    }
+
+    public final void setEventBatchSize(int maxBatchSize) {
+        m_maxBatchSize = maxBatchSize;
+        if (isMeasurementActive()) {
+            m_manager.setMaxBatchSize(maxBatchSize);
+        }
+    }
+
+    public final void setEventBatchLingerTime(long maxBatchLingerTime) {
+        m_maxBatchLingerTime = maxBatchLingerTime;
+        if (isMeasurementActive()) {
+            m_manager.setMaxBatchLingerTime(maxBatchLingerTime);
+        }
+    }
+
+    public final void setMaxStoredEvents(long maxStoredEvents) {
+        m_maxStoredEvents = maxStoredEvents;
+        if (isMeasurementActive()) {
+            m_manager.setMaxStoredEvents(maxStoredEvents);
+        }
+    }
+
+    public final void setMaxStoredBytes(long maxStoredBytes) {
+        m_maxStoredBytes = maxStoredBytes;
+        if (isMeasurementActive()) {
+            m_manager.setMaxStoredBytes(maxStoredBytes);
+        }
+    }
+
+    public final void setMaxDrainBytes(long maxDrainBytes) {
+        m_maxDrainBytes = maxDrainBytes;
+        if (isMeasurementActive()) {
+            m_manager.setMaxDrainBytes(maxDrainBytes);
+        }
+    }
+
+    public final void setMaxDrainTime(long maxDrainTime) {
+        m_maxDrainTime = maxDrainTime;
+        if (isMeasurementActive()) {
+            m_manager.setMaxDrainTime(maxDrainTime);
+        }
+    }
+
     final void setAppLabels(String[] labels){
         m_appLabels = labels;
     }
@@ -328,6 +412,26 @@ enum QCMeasurement implements QCNotificationListener {
         m_usesSecureConnection = usesSecureConnection;
     }
 
+    final boolean usesUploadCompression() {
+        return m_usesUploadCompression;
+    }
+
+    final void setUsesUploadCompression(boolean usesUploadCompression) {
+        m_usesUploadCompression = usesUploadCompression;
+    }
+
+    final boolean usesEventLog() {
+        return m_usesEventLog;
+    }
+
+    final void setUsesEventLog(boolean usesEventLog) {
+        if (isMeasurementActive()) {
+            QCLog.e(TAG, "Event storage can only be changed before the first activityStart.");
+            return;
+        }
+        m_usesEventLog = usesEventLog;
+    }
+
     final boolean isConnected(){
         return QCReachability.isConnected(m_context);
     }
@@ -538,8 +642,15 @@ enum QCMeasurement implements QCNotificationListener {
 
     @Override
     public void notificationCallback(String notificationName, Object o) {
-        if (notificationName.equals(QCOptOutUtility.QC_NOTIF_OPT_OUT_CHANGED)) {
+        if (notificationName.equals(QCPolicy.QC_NOTIF_POLICY_UPDATE)) {
+            if (o == m_policy && isMeasurementActive()) {
+                m_manager.policyUpdated(m_policy);
+            }
+        } else if (notificationName.equals(QCOptOutUtility.QC_NOTIF_OPT_OUT_CHANGED)) {
             m_optedOut = (Boolean) o;
+            if (m_optedOut) {
+                QCUtility.clearSaltedHashCache();
+            }
             //opted back in we need to set everything up
             if (!m_optedOut && (m_apiKey != null || m_networkCode != null)) {
                 m_policy.updatePolicy(m_context);
@@ -548,8 +659,8 @@ enum QCMeasurement implements QCNotificationListener {
                     logBeginSessionEvent(QCEvent.QC_BEGIN_LAUNCH_REASON, new String[]{"_OPT-IN"}, null);
                 }
             } else if (m_optedOut && isMeasurementActive()) {
+                m_manager.deleteEvents();
                 QCUtility.dumpAppInstallID(m_context);
-                m_context.deleteDatabase(QCDatabaseDAO.NAME);
             }
             setOptOutCookie(m_optedOut);
         }
@@ -579,12 +690,20 @@ enum QCMeasurement implements QCNotificationListener {
     final void clearSession() {
 
         if (m_context != null) {
-            m_context.deleteDatabase(QCDatabaseDAO.NAME);
+            if (m_manager != null) {
+                //nothing pending may be written back once the manager releases its store
+                m_manager.dropPendingEvents();
+                m_manager.getEventStore().delete(m_context);
+            }
+            QCDataManager.deleteStoredEvents(m_context);
             File session = m_context.getFileStreamPath(QC_SESSION_FILE);
             if (session.exists()) { session.delete(); }
         }
         m_numActiveContext = 0;
         m_sessionId = null;
+        if (m_manager != null) {
+            m_manager.shutdown();
+        }
         m_manager = null;
         m_policy = null;
         m_context = null;
@@ -13,26 +13,30 @@ package com.quantcast.measurement.service;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Process;
 import android.telephony.TelephonyManager;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.CoreProtocolPNames;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 class QCPolicy {
 
@@ -43,19 +47,30 @@ class QCPolicy {
 
     private static final String USE_NO_SALT = "MSG";
 
-    private Set<String> m_blacklist;
-    private String m_salt;
-    private long m_blackoutUntil;
-    private Long m_sessionTimeout;
+    //written on the event thread, volatile so other threads see a refreshed policy
+    private volatile Set<String> m_blacklist;
+    private volatile String m_salt;
+    private volatile long m_blackoutUntil;
+    private volatile Long m_sessionTimeout;
+    private volatile Long m_maxStoredEvents;
+    private volatile Long m_maxStoredBytes;
+    private volatile Long m_maxEventAge;
+    private volatile Long m_minUploadInterval;
 
-    private boolean m_policyIsLoaded;
+    private volatile boolean m_policyIsLoaded;
 
     private final String m_policyURL;
+    //only one download at a time, later refresh requests join the one in flight
+    private final AtomicBoolean m_refreshing;
 
     private static final String BLACKLIST_KEY = "blacklist";
     private static final String SALT_KEY = "salt";
     private static final String BLACKOUT_KEY = "blackout";
     private static final String SESSION_TIMEOUT_KEY = "sessionTimeOutSeconds";
+    private static final String MAX_STORED_EVENTS_KEY = "maxStoredEvents";
+    private static final String MAX_STORED_BYTES_KEY = "maxStoredBytes";
+    private static final String MAX_EVENT_AGE_KEY = "maxEventAgeSeconds";
+    private static final String MIN_UPLOAD_INTERVAL_KEY = "minUploadIntervalSeconds";
     private static final String POLICY_REQUEST_BASE_WITHOUT_SCHEME = "m.quantcount.com/policy.json";
     private static final String POLICY_REQUEST_API_KEY_PARAMETER = "a";
     private static final String POLICY_REQUEST_API_VERSION_PARAMETER = "v";
@@ -114,25 +129,28 @@ class QCPolicy {
     private QCPolicy(Context context, String policyURL) {
         m_policyURL = policyURL;
         m_policyIsLoaded = false;
+        m_refreshing = new AtomicBoolean(false);
         boolean optedOut = QCOptOutUtility.isOptedOut(context);
         if (optedOut) {
             m_policyIsLoaded = false;
         } else {
-            if (QCReachability.isConnected(context)) {
-                getPolicy(context);
-            } else {
-                QCLog.i(TAG, "No connection.  Policy could not be downloaded. Using cache");
-                m_policyIsLoaded = checkPolicy(context, true);
-            }
+            updatePolicy(context);
         }
     }
 
+    //serves the cached policy right away, even a stale one, and revalidates it in the background when it is
+    //out of date.  The refreshed policy is announced with QC_NOTIF_POLICY_UPDATE on the event thread.
     public void updatePolicy(Context context) {
+        //once loaded the in memory copy is kept current by downloads, so resumes only need to check the file time
+        if (!m_policyIsLoaded) {
+            m_policyIsLoaded = loadCachedPolicy(context);
+        }
+        if (isPolicyFresh(context)) return;
+
         if (QCReachability.isConnected(context)) {
-            getPolicy(context);
+            refreshPolicy(context);
         } else {
             QCLog.i(TAG, "No connection.  Policy could not be updated. Using cache.");
-            m_policyIsLoaded = checkPolicy(context, true);
         }
     }
 
@@ -141,43 +159,98 @@ class QCPolicy {
     }
 
 
-    private void getPolicy(Context context) {
-
+    private void refreshPolicy(final Context context) {
         //if we are blacked out we cant go get the policy yet
         if (isBlackedOut()) return;
+        if (!m_refreshing.compareAndSet(false, true)) return;
 
-        boolean loadedPolicy = checkPolicy(context, false);
-        QCLog.i(TAG, "checking load policy: " + loadedPolicy);
-        if (!loadedPolicy) {
-            String jsonString = null;
-            DefaultHttpClient defaultHttpClient = new DefaultHttpClient();
-            defaultHttpClient.getParams().setParameter(CoreProtocolPNames.USER_AGENT,
-                    System.getProperty("http.agent"));
-            InputStream inputStream = null;
-            try {
-                HttpGet method = new HttpGet(m_policyURL);
-                HttpResponse response = defaultHttpClient.execute(method);
-                inputStream = response.getEntity().getContent();
-                jsonString = readStreamToString(inputStream);
-            } catch (Exception e) {
-                QCLog.e(TAG, "Could not download policy", e);
-                QCMeasurement.INSTANCE.logSDKError("policy-download-failure", e.getMessage(), null);
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException ignored) {
-                    }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    downloadPolicy(context);
+                } finally {
+                    m_refreshing.set(false);
                 }
             }
-            if (jsonString != null) {
-                savePolicy(context, jsonString);
-                loadedPolicy = parsePolicy(jsonString);
+        }, "com.quantcast.policy").start();
+    }
+
+    //runs on the policy thread.  Files are written here, the parsed values are swapped in on the event thread.
+    private void downloadPolicy(final Context context) {
+        String jsonString = null;
+        boolean notModified = false;
+        String[] validators = readValidators(context);
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        try {
+            connection = QCHttpTransport.INSTANCE.openConnection(m_policyURL, "GET");
+            //only ask for a conditional response if there is a cached policy to fall back on
+            if (validators != null && policyFile(context).exists()) {
+                if (validators[0] != null) {
+                    connection.setRequestProperty("If-None-Match", validators[0]);
+                }
+                if (validators[1] != null) {
+                    connection.setRequestProperty("If-Modified-Since", validators[1]);
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified = true;
+            } else if (code < 200 || code > 299) {
+                throw new IOException("Bad response from server. Response code: " + code);
+            } else {
+                inputStream = connection.getInputStream();
+                jsonString = readStreamToString(inputStream);
+                validators = new String[]{connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified")};
+            }
+        } catch (Exception e) {
+            QCLog.e(TAG, "Could not download policy", e);
+            QCMeasurement.INSTANCE.logSDKError("policy-download-failure", e.getMessage(), null);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
             }
+            QCHttpTransport.INSTANCE.release(connection);
+        }
+
+        if (notModified) {
+            QCLog.i(TAG, "Policy not modified, refreshing cache time");
+            touchPolicy(context);
+        } else if (jsonString != null) {
+            deleteParsedPolicy(context);
+            savePolicy(context, jsonString);
+            saveValidators(context, validators[0], validators[1]);
+        } else {
+            return;
         }
-        m_policyIsLoaded = loadedPolicy;
+
+        final String downloaded = jsonString;
+        QCMeasurement.INSTANCE.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (downloaded != null) {
+                    m_policyIsLoaded = parsePolicy(downloaded);
+                    if (m_policyIsLoaded) {
+                        saveParsedPolicy(context, downloaded);
+                    }
+                } else if (!m_policyIsLoaded) {
+                    m_policyIsLoaded = loadCachedPolicy(context);
+                }
+                QCLog.i(TAG, "Policy updated, loaded: " + m_policyIsLoaded);
+                QCNotificationCenter.INSTANCE.postNotification(QC_NOTIF_POLICY_UPDATE, QCPolicy.this);
+            }
+        });
     }
 
+    private boolean isPolicyFresh(Context context) {
+        File policyFile = policyFile(context);
+        return policyFile.exists() && (System.currentTimeMillis() - policyFile.lastModified()) < POLICY_CACHE_LENGTH;
+    }
 
     private boolean parsePolicy(String policyJsonString) {
 
@@ -186,6 +259,10 @@ class QCPolicy {
         m_salt = null;
         m_blackoutUntil = 0;
         m_sessionTimeout = null;
+        m_maxStoredEvents = null;
+        m_maxStoredBytes = null;
+        m_maxEventAge = null;
+        m_minUploadInterval = null;
 
         if (!"".equals(policyJsonString)) {
             try {
@@ -195,13 +272,12 @@ class QCPolicy {
                     try {
                         JSONArray blacklistJSON = policyJSON.getJSONArray(BLACKLIST_KEY);
                         if (blacklistJSON.length() > 0) {
-                            if (m_blacklist == null) {
-                                m_blacklist = new HashSet<String>(blacklistJSON.length());
-                            }
-
+                            //filled in before it is published so readers never see a partial list
+                            Set<String> blacklist = new HashSet<String>(blacklistJSON.length());
                             for (int i = 0; i < blacklistJSON.length(); i++) {
-                                m_blacklist.add(blacklistJSON.getString(i));
+                                blacklist.add(blacklistJSON.getString(i));
                             }
+                            m_blacklist = blacklist;
                         }
                     } catch (JSONException e) {
                         QCLog.w(TAG, "Failed to parse blacklist from JSON.", e);
@@ -237,6 +313,50 @@ class QCPolicy {
                         QCLog.w(TAG, "Failed to parse session timeout from JSON.", e);
                     }
                 }
+
+                if (policyJSON.has(MAX_STORED_EVENTS_KEY)) {
+                    try {
+                        m_maxStoredEvents = policyJSON.getLong(MAX_STORED_EVENTS_KEY);
+                        if (m_maxStoredEvents <= 0) {
+                            m_maxStoredEvents = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse max stored events from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(MAX_STORED_BYTES_KEY)) {
+                    try {
+                        m_maxStoredBytes = policyJSON.getLong(MAX_STORED_BYTES_KEY);
+                        if (m_maxStoredBytes <= 0) {
+                            m_maxStoredBytes = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse max stored bytes from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(MAX_EVENT_AGE_KEY)) {
+                    try {
+                        m_maxEventAge = policyJSON.getLong(MAX_EVENT_AGE_KEY);
+                        if (m_maxEventAge <= 0) {
+                            m_maxEventAge = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse max event age from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(MIN_UPLOAD_INTERVAL_KEY)) {
+                    try {
+                        m_minUploadInterval = policyJSON.getLong(MIN_UPLOAD_INTERVAL_KEY);
+                        if (m_minUploadInterval < 0) {
+                            m_minUploadInterval = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse min upload interval from JSON.", e);
+                    }
+                }
             } catch (JSONException e) {
                 QCLog.w(TAG, "Failed to parse JSON from string: " + policyJsonString);
                 successful = false;
@@ -247,14 +367,108 @@ class QCPolicy {
 
     static final String POLICY_DIRECTORY = "com.quantcast";
     static final String POLICY_FILENAME = "qc-policy.json";
+    static final String POLICY_VALIDATORS_FILENAME = "qc-policy.validators";
+    static final String PARSED_POLICY_FILENAME = "qc-policy.bin";
+    private static final int PARSED_POLICY_MAGIC = 0x51435050;  //"QCPP"
+    //bump whenever the fields written by saveParsedPolicy change
+    private static final int PARSED_POLICY_VERSION = 2;
+
+    private File policyFile(Context context) {
+        File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
+        return new File(base, POLICY_FILENAME);
+    }
+
+    //marks the cached policy as fresh without rewriting it, unless the file system won't let us set the time
+    private void touchPolicy(Context context) {
+        File policyFile = policyFile(context);
+        if (!policyFile.setLastModified(System.currentTimeMillis())) {
+            FileInputStream input = null;
+            try {
+                input = new FileInputStream(policyFile);
+                savePolicy(context, readStreamToString(input));
+            } catch (Exception e) {
+                QCLog.e(TAG, "Could not refresh policy cache", e);
+            } finally {
+                if (input != null) {
+                    try {
+                        input.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    //ETag and Last-Modified of the cached policy, either may be null
+    private String[] readValidators(Context context) {
+        File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
+        File validatorsFile = new File(base, POLICY_VALIDATORS_FILENAME);
+        if (!validatorsFile.exists()) return null;
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(validatorsFile));
+            String eTag = input.readBoolean() ? input.readUTF() : null;
+            String lastModified = input.readBoolean() ? input.readUTF() : null;
+            return new String[]{eTag, lastModified};
+        } catch (Exception e) {
+            QCLog.e(TAG, "Could not read policy validators", e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
 
+    private void saveValidators(Context context, String eTag, String lastModified) {
+        File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
+        File validatorsFile = new File(base, POLICY_VALIDATORS_FILENAME);
+        if (eTag == null && lastModified == null) {
+            validatorsFile.delete();
+            return;
+        }
+
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new FileOutputStream(validatorsFile));
+            stream.writeBoolean(eTag != null);
+            if (eTag != null) {
+                stream.writeUTF(eTag);
+            }
+            stream.writeBoolean(lastModified != null);
+            if (lastModified != null) {
+                stream.writeUTF(lastModified);
+            }
+        } catch (Exception e) {
+            QCLog.e(TAG, "Could not write policy validators", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    //written to a temporary file and renamed, so the event thread never reads a half written policy
     private void savePolicy(Context context, String policy) {
         File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
         File policyFile = new File(base, POLICY_FILENAME);
+        File tempFile = new File(base, POLICY_FILENAME + ".tmp");
         FileOutputStream stream = null;
         try {
-            stream = new FileOutputStream(policyFile);
+            stream = new FileOutputStream(tempFile);
             stream.write(policy.getBytes());
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(policyFile)) {
+                QCLog.e(TAG, "Could not replace policy");
+            }
         } catch (Exception e) {
             QCLog.e(TAG, "Could not write policy", e);
         } finally {
@@ -267,33 +481,169 @@ class QCPolicy {
         }
     }
 
-    private boolean checkPolicy(Context context, boolean force) {
+    //restores the policy from its parsed copy, falling back to parsing the json once and keeping the result
+    private boolean loadCachedPolicy(Context context) {
+        File policyFile = policyFile(context);
+        if (!policyFile.exists()) return false;
+
         boolean retval = false;
-        File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
-        File policyFile = new File(base, POLICY_FILENAME);
-        if (policyFile.exists()) {
-            //check how old it is
-            long date = policyFile.lastModified();
-            FileInputStream input = null;
-            try {
-                input = new FileInputStream(policyFile);
-                String policy = readStreamToString(input);
-                retval = parsePolicy(policy);
-                //check if it should be updated
-                retval = retval && (force || ((System.currentTimeMillis() - date) < POLICY_CACHE_LENGTH));
-            } catch (Exception e) {
-                QCLog.e(TAG, "Could not read from policy cache", e);
-            } finally {
-                if (input != null) {
-                    try {
-                        input.close();
-                    } catch (IOException ignored) {
-                    }
+        String policy = null;
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(policyFile);
+            policy = readStreamToString(input);
+            if (readParsedPolicy(context, policy)) return true;
+            retval = parsePolicy(policy);
+        } catch (Exception e) {
+            QCLog.e(TAG, "Could not read from policy cache", e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
                 }
             }
         }
+        if (retval) {
+            saveParsedPolicy(context, policy);
+        }
         return retval;
+    }
 
+    private File parsedPolicyFile(Context context) {
+        File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
+        return new File(base, PARSED_POLICY_FILENAME);
+    }
+
+    //the parsed copy only counts if it was made from this json, checked by its length and checksum.
+    //Hashing the json is still far cheaper than parsing it
+    private boolean readParsedPolicy(Context context, String policy) {
+        File parsedFile = parsedPolicyFile(context);
+        if (!parsedFile.exists()) return false;
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(parsedFile)));
+            if (input.readInt() != PARSED_POLICY_MAGIC || input.readInt() != PARSED_POLICY_VERSION) {
+                QCLog.i(TAG, "Parsed policy cache is from another version, ignoring it");
+                return false;
+            }
+            byte[] source = policy.getBytes();
+            if (input.readInt() != source.length || input.readLong() != checksum(source)) {
+                QCLog.i(TAG, "Parsed policy cache doesn't match the cached policy, ignoring it");
+                return false;
+            }
+            Set<String> blacklist = null;
+            int blacklistSize = input.readInt();
+            if (blacklistSize > 0) {
+                blacklist = new HashSet<String>(blacklistSize);
+                for (int i = 0; i < blacklistSize; i++) {
+                    blacklist.add(input.readUTF());
+                }
+            }
+            String salt = input.readBoolean() ? input.readUTF() : null;
+            long blackoutUntil = input.readLong();
+            Long sessionTimeout = readOptionalLong(input);
+            Long maxStoredEvents = readOptionalLong(input);
+            Long maxStoredBytes = readOptionalLong(input);
+            Long maxEventAge = readOptionalLong(input);
+            Long minUploadInterval = readOptionalLong(input);
+
+            m_blacklist = blacklist;
+            m_salt = salt;
+            m_blackoutUntil = blackoutUntil;
+            m_sessionTimeout = sessionTimeout;
+            m_maxStoredEvents = maxStoredEvents;
+            m_maxStoredBytes = maxStoredBytes;
+            m_maxEventAge = maxEventAge;
+            m_minUploadInterval = minUploadInterval;
+            return true;
+        } catch (Exception e) {
+            QCLog.e(TAG, "Could not read parsed policy", e);
+            return false;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    //written to a temporary file and renamed like the json, a crash can't leave a truncated copy behind
+    private void saveParsedPolicy(Context context, String policy) {
+        File parsedFile = parsedPolicyFile(context);
+        File tempFile = new File(parsedFile.getParentFile(), PARSED_POLICY_FILENAME + ".tmp");
+        DataOutputStream stream = null;
+        boolean written = false;
+        try {
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            stream.writeInt(PARSED_POLICY_MAGIC);
+            stream.writeInt(PARSED_POLICY_VERSION);
+            byte[] source = policy.getBytes();
+            stream.writeInt(source.length);
+            stream.writeLong(checksum(source));
+            Set<String> blacklist = m_blacklist;
+            if (blacklist == null) {
+                stream.writeInt(0);
+            } else {
+                stream.writeInt(blacklist.size());
+                for (String key : blacklist) {
+                    stream.writeUTF(key);
+                }
+            }
+            stream.writeBoolean(m_salt != null);
+            if (m_salt != null) {
+                stream.writeUTF(m_salt);
+            }
+            stream.writeLong(m_blackoutUntil);
+            writeOptionalLong(stream, m_sessionTimeout);
+            writeOptionalLong(stream, m_maxStoredEvents);
+            writeOptionalLong(stream, m_maxStoredBytes);
+            writeOptionalLong(stream, m_maxEventAge);
+            writeOptionalLong(stream, m_minUploadInterval);
+            stream.close();
+            stream = null;
+            written = tempFile.renameTo(parsedFile);
+            if (!written) {
+                QCLog.e(TAG, "Could not replace parsed policy");
+            }
+        } catch (Exception e) {
+            QCLog.e(TAG, "Could not write parsed policy", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    //dropped before a new policy is written so a crash in between can't leave the old values behind
+    private void deleteParsedPolicy(Context context) {
+        parsedPolicyFile(context).delete();
+    }
+
+    private static Long readOptionalLong(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readLong() : null;
+    }
+
+    private static void writeOptionalLong(DataOutputStream stream, Long value) throws IOException {
+        stream.writeBoolean(value != null);
+        if (value != null) {
+            stream.writeLong(value);
+        }
     }
 
 
@@ -312,6 +662,11 @@ class QCPolicy {
         return retval;
     }
 
+    boolean hasBlacklist() {
+        Set<String> blacklist = m_blacklist;
+        return blacklist != null && !blacklist.isEmpty();
+    }
+
     String getSalt() {
         return m_salt;
     }
@@ -324,6 +679,24 @@ class QCPolicy {
         return m_sessionTimeout;
     }
 
+    Long getMaxStoredEvents() {
+        return m_maxStoredEvents;
+    }
+
+    Long getMaxStoredBytes() {
+        return m_maxStoredBytes;
+    }
+
+    //in seconds
+    Long getMaxEventAge() {
+        return m_maxEventAge;
+    }
+
+    //in seconds
+    Long getMinUploadInterval() {
+        return m_minUploadInterval;
+    }
+
     private String readStreamToString(InputStream input) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
         BufferedReader reader = null;
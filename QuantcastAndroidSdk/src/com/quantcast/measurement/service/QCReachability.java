@@ -12,14 +12,78 @@
 
 package com.quantcast.measurement.service;
 
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 
 class QCReachability {
 
+    public static final String QC_NOTIF_REACHABILITY_CHANGED = "QC_RC";
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCReachability.class);
+
+    //last known network state, kept up to date from connectivity broadcasts once monitoring starts
+    private static volatile NetworkState cachedState;
+    private static BroadcastReceiver receiver;
+
+    //starts caching network state so the checks below don't need a binder call each time.
+    //Listeners are told about changes on the event thread.
+    static void startMonitoring(Context context) {
+        if (context == null || receiver != null) return;
+
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        cachedState = NetworkState.query(appContext);
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                QCMeasurement.INSTANCE.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(appContext);
+                    }
+                });
+            }
+        };
+        appContext.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    private static void refresh(Context context) {
+        NetworkState previous = cachedState;
+        NetworkState current = NetworkState.query(context);
+        cachedState = current;
+        if (previous == null || !previous.equals(current)) {
+            QCLog.i(TAG, "Network changed to " + current.networkType);
+            QCNotificationCenter.INSTANCE.postNotification(QC_NOTIF_REACHABILITY_CHANGED, current.connected);
+        }
+    }
+
     static boolean isConnected(Context context) {
         if(context == null) return true;
+        NetworkState state = cachedState;
+        if (state != null) return state.connected;
+        return queryConnected(context);
+    }
+
+    //true if data on the active network may cost the user money, roaming always counts as metered
+    static boolean isMetered(Context context) {
+        if (context == null) return true;
+        NetworkState state = cachedState;
+        if (state != null) return state.metered;
+        return queryMetered(context);
+    }
+
+    static String networkType(Context context) {
+        NetworkState state = cachedState;
+        if (state != null) return state.networkType;
+        return queryNetworkType(context);
+    }
+
+    private static boolean queryConnected(Context context) {
         boolean retval = false;
         ConnectivityManager conn = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         if (conn != null) {
@@ -29,7 +93,25 @@ class QCReachability {
         return retval;
     }
 
-    static String networkType(Context context) {
+    @TargetApi(16)
+    private static boolean queryMetered(Context context) {
+        boolean retval = true;
+        ConnectivityManager conn = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (conn != null) {
+            NetworkInfo ni = conn.getActiveNetworkInfo();
+            if (ni != null && ni.isConnected() && !ni.isRoaming()) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    retval = conn.isActiveNetworkMetered();
+                } else {
+                    int type = ni.getType();
+                    retval = type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+                }
+            }
+        }
+        return retval;
+    }
+
+    private static String queryNetworkType(Context context) {
         String retval = "unknown";
         ConnectivityManager conn = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         if (conn != null) {
@@ -50,4 +132,37 @@ class QCReachability {
         return retval;
     }
 
+    private static class NetworkState {
+        final boolean connected;
+        final boolean metered;
+        final String networkType;
+
+        NetworkState(boolean connected, boolean metered, String networkType) {
+            this.connected = connected;
+            this.metered = metered;
+            this.networkType = networkType;
+        }
+
+        static NetworkState query(Context context) {
+            return new NetworkState(queryConnected(context), queryMetered(context), queryNetworkType(context));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof NetworkState)) return false;
+            NetworkState other = (NetworkState) o;
+            return connected == other.connected && metered == other.metered
+                    && (networkType == null ? other.networkType == null : networkType.equals(other.networkType));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = connected ? 1 : 0;
+            result = 31 * result + (metered ? 1 : 0);
+            result = 31 * result + (networkType != null ? networkType.hashCode() : 0);
+            return result;
+        }
+    }
+
 }
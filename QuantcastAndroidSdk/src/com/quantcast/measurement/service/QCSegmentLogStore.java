@@ -0,0 +1,639 @@
+/**
+ * © Copyright 2012-2014 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License. Unauthorized use of this file constitutes
+ * copyright infringement and violation of law.
+ */
+
+
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/*
+   Append-only event log kept in memory mapped segment files.
+
+   Each segment starts with a header: magic, version and the id of the last acknowledged event.
+   Records follow back to back:  length(4) | id(8) priority(1) parameters(n) | crc32(4)
+   where length covers the id, priority and parameters.  The length is written last, so a record
+   with a zero length or a bad checksum marks the end of the log and anything after it in the
+   last segment is left over from a crash.
+
+   Segments are named after the id of their first record.  A segment is deleted once every
+   record in it has been acknowledged, except for the last one, which is kept so its header
+   carries the acknowledged mark and the next id across a restart even when the log is empty.
+
+   Each append forces the segments it wrote to disk before returning, so a group commit from the
+   data manager is as durable as the database transaction it replaces.  Acknowledgements are
+   forced too; losing one would only mean sending those events again.
+
+   Compaction writes the kept records to .compact segments and syncs them, then commits by
+   renaming a marker listing the old and compacted segment names into place.  Only after that
+   are the old segments deleted and the compacted ones renamed, so a crash at any point either
+   leaves the old log untouched or leaves a marker that lets the next open finish the swap.
+ */
+class QCSegmentLogStore implements QCEventStore {
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCSegmentLogStore.class);
+
+    static final String LOG_DIRECTORY = "com.quantcast.events";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String COMPACTION_MARKER = "compaction.commit";
+    private static final String COMPACTION_MARKER_TEMP = "compaction.tmp";
+    static final int SEGMENT_SIZE = 256 * 1024;
+
+    private static final int SEGMENT_MAGIC = 0x51434c47;   //QCLG
+    private static final int SEGMENT_VERSION = 1;
+    private static final int HEADER_ACKED_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 4;
+
+    private final File m_directory;
+    private List<Segment> m_segments;
+    private long m_ackedThrough;
+    private long m_nextId;
+    private long m_count;
+    private long m_bytes;
+
+    QCSegmentLogStore(Context context) {
+        m_directory = context.getDir(LOG_DIRECTORY, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public synchronized int append(Collection<QCEvent> events) {
+        if (events.isEmpty() || !open()) return 0;
+
+        int firstWritten = Math.max(0, m_segments.size() - 1);
+        int numberWritten = 0;
+        for (QCEvent event : events) {
+            byte[] params = QCEvent.encodeParameters(event.getParameters());
+            int recordSize = RECORD_OVERHEAD + params.length;
+            try {
+                Segment tail = m_segments.isEmpty() ? null : m_segments.get(m_segments.size() - 1);
+                if (tail == null || !tail.hasRoomFor(recordSize)) {
+                    tail = Segment.create(m_directory, m_nextId, Math.max(SEGMENT_SIZE, HEADER_SIZE + recordSize), m_ackedThrough, SEGMENT_SUFFIX);
+                    m_segments.add(tail);
+                }
+                tail.write(m_nextId, event.getPriority(), params);
+                m_nextId++;
+                m_count++;
+                m_bytes += params.length;
+                numberWritten++;
+            } catch (IOException e) {
+                QCLog.e(TAG, "Unable to append " + event + " to event log.", e);
+                break;
+            }
+        }
+        for (int i = firstWritten; i < m_segments.size(); i++) {
+            m_segments.get(i).m_buffer.force();
+        }
+        return numberWritten;
+    }
+
+    @Override
+    public synchronized List<QCEvent> peek(int maxToRetrieve) {
+        final List<QCEvent> events = new ArrayList<QCEvent>();
+        try {
+            peek(maxToRetrieve, new EventVisitor() {
+                @Override
+                public void visit(QCEvent event) {
+                    events.add(event);
+                }
+            });
+        } catch (IOException ignored) {
+            //collecting into a list can't fail
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized int peek(int maxToRetrieve, EventVisitor visitor) throws IOException {
+        if (maxToRetrieve <= 0 || !open()) return 0;
+
+        int visited = 0;
+        for (Segment segment : m_segments) {
+            int position = HEADER_SIZE;
+            while (position < segment.m_writePosition && visited < maxToRetrieve) {
+                ByteBuffer buffer = segment.m_buffer;
+                int length = buffer.getInt(position);
+                long id = buffer.getLong(position + 4);
+                if (id > m_ackedThrough) {
+                    byte[] params = new byte[length - 9];
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(position + 4 + 9);
+                    record.get(params);
+                    visitor.visit(QCEvent.storedEvent(id, QCEvent.decodeParameters(params)));
+                    visited++;
+                }
+                position += 4 + length + 4;
+            }
+            if (visited >= maxToRetrieve) break;
+        }
+        return visited;
+    }
+
+    @Override
+    public synchronized boolean ack(long throughId) {
+        if (!open()) return false;
+        if (throughId <= m_ackedThrough) return true;
+
+        long[] acked = new long[2];
+        for (Segment segment : m_segments) {
+            segment.tally(m_ackedThrough, throughId, acked);
+        }
+        m_count = Math.max(0, m_count - acked[0]);
+        m_bytes = Math.max(0, m_bytes - acked[1]);
+        m_ackedThrough = throughId;
+
+        //truncate whole segments from the front, keeping the tail, then remember the mark in whatever is left
+        while (m_segments.size() > 1 && m_segments.get(0).m_lastId <= throughId) {
+            Segment head = m_segments.remove(0);
+            head.close();
+            if (!head.m_file.delete()) {
+                QCLog.w(TAG, "Could not delete event log segment " + head.m_file.getName());
+            }
+        }
+        if (!m_segments.isEmpty()) {
+            Segment head = m_segments.get(0);
+            head.m_buffer.putLong(HEADER_ACKED_OFFSET, throughId);
+            head.m_buffer.force();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long count() {
+        return open() ? m_count : 0;
+    }
+
+    @Override
+    public synchronized long byteCount() {
+        return open() ? m_bytes : 0;
+    }
+
+    /*
+       Records can't be taken out of the middle of the log, so eviction copies everything that
+       is kept into fresh segments and swaps them in.  The data manager evicts down to 80% of its
+       limits, so a store held at its limit by a steady stream of events compacts once per fifth
+       of the limit written rather than on every write.
+     */
+    @Override
+    public synchronized int evict(int priority, long maxCount, long maxBytes) {
+        if (!open()) return 0;
+
+        long excessCount = m_count - maxCount;
+        long excessBytes = m_bytes - maxBytes;
+        if (excessCount <= 0 && excessBytes <= 0) return 0;
+
+        //find the newest id of this priority that has to go
+        int removed = 0;
+        long removedBytes = 0;
+        long cutoffId = -1;
+        for (Segment segment : m_segments) {
+            int position = HEADER_SIZE;
+            while (position < segment.m_writePosition && (removed < excessCount || removedBytes < excessBytes)) {
+                int length = segment.m_buffer.getInt(position);
+                long id = segment.m_buffer.getLong(position + 4);
+                if (id > m_ackedThrough && segment.m_buffer.get(position + 12) == priority) {
+                    cutoffId = id;
+                    removedBytes += length - 9;
+                    removed++;
+                }
+                position += 4 + length + 4;
+            }
+        }
+        if (removed == 0) return 0;
+
+        try {
+            compact(priority, cutoffId);
+        } catch (IOException e) {
+            QCLog.e(TAG, "Unable to compact event log.", e);
+            return 0;
+        }
+        return removed;
+    }
+
+    //rewrites the log without acknowledged records and without records of the priority up to cutoffId
+    private void compact(int priority, long cutoffId) throws IOException {
+        List<Segment> compacted = new ArrayList<Segment>();
+        try {
+            Segment tail = null;
+            for (Segment segment : m_segments) {
+                int position = HEADER_SIZE;
+                while (position < segment.m_writePosition) {
+                    int length = segment.m_buffer.getInt(position);
+                    long id = segment.m_buffer.getLong(position + 4);
+                    int recordPriority = segment.m_buffer.get(position + 12);
+                    if (id > m_ackedThrough && !(recordPriority == priority && id <= cutoffId)) {
+                        byte[] params = new byte[length - 9];
+                        ByteBuffer record = segment.m_buffer.duplicate();
+                        record.position(position + 4 + 9);
+                        record.get(params);
+                        int recordSize = RECORD_OVERHEAD + params.length;
+                        if (tail == null || !tail.hasRoomFor(recordSize)) {
+                            tail = Segment.create(m_directory, id, Math.max(SEGMENT_SIZE, HEADER_SIZE + recordSize), m_ackedThrough, COMPACT_SUFFIX);
+                            compacted.add(tail);
+                        }
+                        tail.write(id, recordPriority, params);
+                    }
+                    position += 4 + length + 4;
+                }
+            }
+            //an empty segment still carries the next id when every record was dropped
+            if (compacted.isEmpty()) {
+                compacted.add(Segment.create(m_directory, m_nextId, SEGMENT_SIZE, m_ackedThrough, COMPACT_SUFFIX));
+            }
+
+            //nothing is committed until every compacted record is on disk
+            for (Segment segment : compacted) {
+                segment.m_buffer.force();
+            }
+        } catch (IOException e) {
+            discard(compacted);
+            throw e;
+        }
+
+        List<String> oldNames = new ArrayList<String>();
+        for (Segment segment : m_segments) {
+            oldNames.add(segment.m_file.getName());
+        }
+        List<String> compactNames = new ArrayList<String>();
+        for (Segment segment : compacted) {
+            compactNames.add(segment.m_file.getName());
+        }
+        try {
+            writeCompactionMarker(oldNames, compactNames);
+        } catch (IOException e) {
+            discard(compacted);
+            throw e;
+        }
+
+        //committed, from here on a failure leaves the marker for the next open to finish the swap
+        for (Segment segment : compacted) {
+            segment.close();
+        }
+        release();
+        finishCompaction(oldNames, compactNames);
+        open();
+    }
+
+    private static void discard(List<Segment> segments) {
+        for (Segment segment : segments) {
+            segment.close();
+            //noinspection ResultOfMethodCallIgnored
+            segment.m_file.delete();
+        }
+    }
+
+    private void writeCompactionMarker(List<String> oldNames, List<String> compactNames) throws IOException {
+        File temp = new File(m_directory, COMPACTION_MARKER_TEMP);
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeNames(out, oldNames);
+            writeNames(out, compactNames);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(new File(m_directory, COMPACTION_MARKER))) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Could not commit event log compaction");
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) throw new IOException("Bad compaction marker");
+        List<String> names = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    /*
+       Deletes the old segments, renames the compacted ones and removes the marker.  Safe to run again
+       after a crash: once any compacted segment has been renamed every old one is already gone, and a
+       renamed segment may share its name with an old one, so the deletes are only redone before that.
+     */
+    private void finishCompaction(List<String> oldNames, List<String> compactNames) throws IOException {
+        boolean renaming = false;
+        for (String name : compactNames) {
+            renaming |= !new File(m_directory, name).exists();
+        }
+        if (!renaming) {
+            for (String name : oldNames) {
+                File file = new File(m_directory, name);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Could not delete event log segment " + name);
+                }
+            }
+        }
+        for (String name : compactNames) {
+            File file = new File(m_directory, name);
+            if (!file.exists()) continue;
+            File renamed = new File(m_directory, name.substring(0, name.length() - COMPACT_SUFFIX.length()) + SEGMENT_SUFFIX);
+            if (!file.renameTo(renamed)) {
+                throw new IOException("Could not rename compacted segment " + name);
+            }
+        }
+        if (!new File(m_directory, COMPACTION_MARKER).delete()) {
+            throw new IOException("Could not remove event log compaction marker");
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        release();
+        File[] files = m_directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void delete(Context context) {
+        clear();
+        //noinspection ResultOfMethodCallIgnored
+        m_directory.delete();
+    }
+
+    @Override
+    public synchronized void release() {
+        if (m_segments != null) {
+            for (Segment segment : m_segments) {
+                segment.close();
+            }
+            m_segments = null;
+        }
+    }
+
+    //opens every segment and scans them to find the end of the log and the number of unacknowledged events
+    private boolean open() {
+        if (m_segments != null) return true;
+
+        if (!m_directory.exists() && !m_directory.mkdirs()) {
+            QCLog.e(TAG, "Could not create event log directory.");
+            return false;
+        }
+
+        if (!recoverCompaction()) return false;
+
+        List<Segment> segments = new ArrayList<Segment>();
+        File[] files = m_directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    segments.add(Segment.open(file));
+                } catch (IOException e) {
+                    QCLog.e(TAG, "Dropping unreadable event log segment " + file.getName(), e);
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                return lhs.m_firstId < rhs.m_firstId ? -1 : (lhs.m_firstId == rhs.m_firstId ? 0 : 1);
+            }
+        });
+
+        m_ackedThrough = 0;
+        m_nextId = 1;
+        for (Segment segment : segments) {
+            m_ackedThrough = Math.max(m_ackedThrough, segment.m_ackedThrough);
+            m_nextId = Math.max(m_nextId, Math.max(segment.m_firstId, segment.m_lastId + 1));
+        }
+        m_nextId = Math.max(m_nextId, m_ackedThrough + 1);
+
+        long[] totals = new long[2];
+        for (Segment segment : segments) {
+            segment.tally(m_ackedThrough, Long.MAX_VALUE, totals);
+        }
+        m_count = totals[0];
+        m_bytes = totals[1];
+        m_segments = segments;
+        QCLog.i(TAG, "Opened event log with " + segments.size() + " segments and " + m_count + " events");
+        return true;
+    }
+
+    //finishes a committed compaction, or throws away the leftovers of one that never committed
+    private boolean recoverCompaction() {
+        File marker = new File(m_directory, COMPACTION_MARKER);
+        if (marker.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(marker)));
+                List<String> oldNames;
+                List<String> compactNames;
+                try {
+                    oldNames = readNames(in);
+                    compactNames = readNames(in);
+                } finally {
+                    in.close();
+                }
+                finishCompaction(oldNames, compactNames);
+                QCLog.i(TAG, "Finished interrupted event log compaction");
+            } catch (IOException e) {
+                //the compacted segments may hold the only copy of the events, leave everything for the next try
+                QCLog.e(TAG, "Unable to finish event log compaction.", e);
+                return false;
+            }
+        }
+
+        File[] files = m_directory.listFiles();
+        if (files == null) return true;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(COMPACT_SUFFIX) || name.equals(COMPACTION_MARKER_TEMP)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        return true;
+    }
+
+    private static class Segment {
+        final File m_file;
+        final long m_firstId;
+        final RandomAccessFile m_raf;
+        final MappedByteBuffer m_buffer;
+        long m_ackedThrough;
+        long m_lastId;
+        int m_writePosition;
+
+        private Segment(File file, long firstId, RandomAccessFile raf, MappedByteBuffer buffer) {
+            m_file = file;
+            m_firstId = firstId;
+            m_raf = raf;
+            m_buffer = buffer;
+            m_lastId = firstId - 1;
+            m_writePosition = HEADER_SIZE;
+        }
+
+        static Segment create(File directory, long firstId, int size, long ackedThrough, String suffix) throws IOException {
+            File file = new File(directory, String.format(Locale.US, "%019d", firstId) + suffix);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                Segment segment = new Segment(file, firstId, raf, buffer);
+                buffer.putInt(0, SEGMENT_MAGIC);
+                buffer.putInt(4, SEGMENT_VERSION);
+                buffer.putLong(HEADER_ACKED_OFFSET, ackedThrough);
+                segment.m_ackedThrough = ackedThrough;
+                return segment;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        static Segment open(File file) throws IOException {
+            String name = file.getName();
+            long firstId;
+            try {
+                firstId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad segment name " + name);
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long size = raf.length();
+                if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("Bad segment size " + size);
+                }
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != SEGMENT_VERSION) {
+                    throw new IOException("Bad segment header");
+                }
+                Segment segment = new Segment(file, firstId, raf, buffer);
+                segment.m_ackedThrough = buffer.getLong(HEADER_ACKED_OFFSET);
+                segment.recover();
+                return segment;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        //walks the records until the first one that was never completely written
+        private void recover() {
+            int position = HEADER_SIZE;
+            int limit = m_buffer.capacity();
+            CRC32 crc = new CRC32();
+            while (position + RECORD_OVERHEAD <= limit) {
+                int length = m_buffer.getInt(position);
+                if (length < 9 || position + 4 + length + 4 > limit) break;
+
+                byte[] payload = new byte[length];
+                ByteBuffer record = m_buffer.duplicate();
+                record.position(position + 4);
+                record.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != m_buffer.getInt(position + 4 + length)) break;
+
+                m_lastId = m_buffer.getLong(position + 4);
+                position += 4 + length + 4;
+            }
+            m_writePosition = position;
+
+            //clear out a torn record so it can't be mistaken for data once new records are written over it
+            if (position + 4 <= limit && m_buffer.getInt(position) != 0) {
+                QCLog.w(TAG, "Recovering event log segment " + m_file.getName() + " at " + position);
+                for (int i = position; i < limit; i++) {
+                    m_buffer.put(i, (byte) 0);
+                }
+            }
+        }
+
+        boolean hasRoomFor(int recordSize) {
+            return m_writePosition + recordSize <= m_buffer.capacity();
+        }
+
+        void write(long id, int priority, byte[] params) {
+            int length = 8 + 1 + params.length;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.putLong(id);
+            payload.put((byte) priority);
+            payload.put(params);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, length);
+
+            ByteBuffer record = m_buffer.duplicate();
+            record.position(m_writePosition + 4);
+            record.put(payload.array());
+            record.putInt((int) crc.getValue());
+            //the length goes in last, it is what makes the record visible
+            m_buffer.putInt(m_writePosition, length);
+
+            m_writePosition += 4 + length + 4;
+            m_lastId = id;
+        }
+
+        //adds the number and parameter size of records with an id in (afterId, throughId] to totals
+        void tally(long afterId, long throughId, long[] totals) {
+            if (m_lastId <= afterId || m_firstId > throughId) return;
+
+            int position = HEADER_SIZE;
+            while (position < m_writePosition) {
+                int length = m_buffer.getInt(position);
+                long id = m_buffer.getLong(position + 4);
+                if (id > throughId) break;
+                if (id > afterId) {
+                    totals[0]++;
+                    totals[1] += length - 9;
+                }
+                position += 4 + length + 4;
+            }
+        }
+
+        void close() {
+            try {
+                m_raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
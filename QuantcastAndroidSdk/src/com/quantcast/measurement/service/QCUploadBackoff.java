@@ -0,0 +1,137 @@
+/**
+ * © Copyright 2012-2014 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License. Unauthorized use of this file constitutes
+ * copyright infringement and violation of law.
+ */
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Random;
+
+/**
+ * Spaces out upload attempts after failures.  Each consecutive failure doubles the wait, with jitter so a
+ * fleet of devices doesn't retry in step, and after enough failures in a row the circuit opens and only a
+ * single probe is let through each open period.  State is kept in shared preferences so a restart doesn't
+ * reset the wait.  Only touched from the event thread.
+ */
+class QCUploadBackoff {
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCUploadBackoff.class);
+
+    static final long BASE_DELAY = 1000 * 30;  //30 seconds
+    static final long MAX_DELAY = 1000 * 60 * 60;  //1 hour
+    static final int FAILURES_TO_OPEN = 5;
+    static final long OPEN_TIME = 1000 * 60 * 60;  //1 hour
+
+    private static final String SHARED_PREFERENCES_NAME = "com.quantcast.measurement.service.upload";
+    private static final String FAILURES_PREF_NAME = "failures";
+    private static final String NEXT_ATTEMPT_PREF_NAME = "nextAttempt";
+    private static final String OPENED_AT_PREF_NAME = "openedAt";
+
+    private final SharedPreferences m_preferences;
+    private final Random m_random;
+
+    private int m_consecutiveFailures;
+    private long m_nextAttemptTime;
+    private long m_openedAt;
+
+    //metrics for this process
+    private long m_attempts;
+    private long m_skips;
+    private long m_openTime;
+
+    QCUploadBackoff(Context context) {
+        m_preferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        m_random = new Random();
+        m_consecutiveFailures = m_preferences.getInt(FAILURES_PREF_NAME, 0);
+        m_nextAttemptTime = m_preferences.getLong(NEXT_ATTEMPT_PREF_NAME, 0);
+        m_openedAt = m_preferences.getLong(OPENED_AT_PREF_NAME, 0);
+
+        //the times are wall clock, if it was set back since they were saved don't wait longer than a fresh failure would
+        long now = System.currentTimeMillis();
+        m_nextAttemptTime = Math.min(m_nextAttemptTime, now + Math.max(MAX_DELAY, OPEN_TIME));
+        if (m_openedAt > now) {
+            m_openedAt = now;
+        }
+    }
+
+    //true if an upload may go out now, otherwise the skip is counted
+    boolean shouldAttempt() {
+        if (System.currentTimeMillis() < m_nextAttemptTime) {
+            m_skips++;
+            return false;
+        }
+        m_attempts++;
+        return true;
+    }
+
+    //only the first failure of a streak is worth reporting, the rest would just add more events to a failing upload
+    boolean shouldReportFailure() {
+        return m_consecutiveFailures == 0;
+    }
+
+    void onSuccess() {
+        if (m_consecutiveFailures == 0 && m_openedAt == 0) return;
+
+        if (isOpen()) {
+            m_openTime += System.currentTimeMillis() - m_openedAt;
+            QCLog.i(TAG, "Upload circuit closed. " + metrics());
+        }
+        m_consecutiveFailures = 0;
+        m_nextAttemptTime = 0;
+        m_openedAt = 0;
+        save();
+    }
+
+    //returns how long to wait before the next attempt
+    long onFailure() {
+        long now = System.currentTimeMillis();
+        m_consecutiveFailures++;
+        long delay;
+        if (m_consecutiveFailures >= FAILURES_TO_OPEN) {
+            if (!isOpen()) {
+                m_openedAt = now;
+                QCLog.w(TAG, "Upload circuit opened after " + m_consecutiveFailures + " failures. " + metrics());
+            }
+            delay = OPEN_TIME;
+        } else {
+            delay = Math.min(MAX_DELAY, BASE_DELAY << (m_consecutiveFailures - 1));
+        }
+        //keep at least half the wait and randomize the rest
+        delay = delay / 2 + (long) (m_random.nextDouble() * (delay / 2));
+        m_nextAttemptTime = now + delay;
+        save();
+        return delay;
+    }
+
+    boolean isOpen() {
+        return m_openedAt > 0;
+    }
+
+    private long getOpenTime() {
+        long openTime = m_openTime;
+        if (isOpen()) {
+            openTime += Math.max(0, System.currentTimeMillis() - m_openedAt);
+        }
+        return openTime;
+    }
+
+    private String metrics() {
+        return "attempts: " + m_attempts + " skips: " + m_skips + " open time: " + getOpenTime() + "ms";
+    }
+
+    private void save() {
+        QCUtility.savePreferences(m_preferences.edit()
+                .putInt(FAILURES_PREF_NAME, m_consecutiveFailures)
+                .putLong(NEXT_ATTEMPT_PREF_NAME, m_nextAttemptTime)
+                .putLong(OPENED_AT_PREF_NAME, m_openedAt));
+    }
+}
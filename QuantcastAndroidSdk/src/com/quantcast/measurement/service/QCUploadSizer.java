@@ -0,0 +1,130 @@
+/**
+ * © Copyright 2012-2014 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License. Unauthorized use of this file constitutes
+ * copyright infringement and violation of law.
+ */
+package com.quantcast.measurement.service;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the upload batch size for each network type from what past uploads on it have done.
+ * Upload time is fitted as a fixed per request latency plus a cost per event, using moving averages
+ * so old uploads fade out, and the batch is sized so the events themselves take about TARGET_UPLOAD_TIME.
+ * The round trip doesn't shrink the batch, on a slow link that would only mean more round trips.
+ * A failure halves the batch for that network.  Only touched from the event thread.
+ */
+class QCUploadSizer {
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCUploadSizer.class);
+
+    static final long TARGET_UPLOAD_TIME = 1000 * 5;  //5 seconds
+    //weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.3;
+    //below this spread in batch sizes the fit can't tell latency from per event cost
+    private static final double MIN_COUNT_VARIANCE = 1.0;
+
+    private final Map<String, NetworkStats> m_stats;
+    private final int m_initialBatchSize;
+
+    QCUploadSizer(int initialBatchSize) {
+        m_stats = new HashMap<String, NetworkStats>();
+        m_initialBatchSize = initialBatchSize;
+    }
+
+    int getBatchSize(String networkType, int minBatchSize, int maxBatchSize) {
+        NetworkStats stats = m_stats.get(networkType);
+        double batchSize = stats == null ? m_initialBatchSize : stats.batchSize;
+        return (int) Math.max(minBatchSize, Math.min(maxBatchSize, Math.round(batchSize)));
+    }
+
+    void onSuccess(String networkType, int eventCount, long elapsedTime, int minBatchSize, int maxBatchSize) {
+        if (eventCount <= 0) return;
+
+        NetworkStats stats = statsFor(networkType);
+        stats.add(eventCount, Math.max(1, elapsedTime));
+        stats.failureRate = average(stats.failureRate, 0);
+
+        double perEventTime = stats.perEventTime();
+        //back off the target while the network keeps failing
+        double target = perEventTime > 0 ? TARGET_UPLOAD_TIME / perEventTime * (1.0 - stats.failureRate) : maxBatchSize;
+        stats.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, target));
+        QCLog.i(TAG, "Upload on " + networkType + " latency: " + Math.round(stats.latency(perEventTime)) + "ms per event: "
+                + String.format(Locale.US, "%.2f", perEventTime) + "ms batch size: " + Math.round(stats.batchSize));
+    }
+
+    void onFailure(String networkType, int minBatchSize) {
+        NetworkStats stats = statsFor(networkType);
+        stats.failureRate = average(stats.failureRate, 1);
+        stats.batchSize = Math.max(minBatchSize, stats.batchSize / 2);
+    }
+
+    private NetworkStats statsFor(String networkType) {
+        NetworkStats stats = m_stats.get(networkType);
+        if (stats == null) {
+            stats = new NetworkStats(m_initialBatchSize);
+            m_stats.put(networkType, stats);
+        }
+        return stats;
+    }
+
+    private static double average(double current, double sample) {
+        return current + SMOOTHING * (sample - current);
+    }
+
+    //exponentially weighted least squares of elapsed time against event count
+    private static class NetworkStats {
+        double weight;
+        double sumCount;
+        double sumTime;
+        double sumCountSquared;
+        double sumCountTime;
+        long minTime;
+        double failureRate;
+        double batchSize;
+
+        NetworkStats(int initialBatchSize) {
+            batchSize = initialBatchSize;
+            minTime = Long.MAX_VALUE;
+        }
+
+        void add(int eventCount, long elapsedTime) {
+            double decay = 1.0 - SMOOTHING;
+            weight = weight * decay + 1;
+            sumCount = sumCount * decay + eventCount;
+            sumTime = sumTime * decay + elapsedTime;
+            sumCountSquared = sumCountSquared * decay + (double) eventCount * eventCount;
+            sumCountTime = sumCountTime * decay + (double) eventCount * elapsedTime;
+            minTime = Math.min(minTime, elapsedTime);
+        }
+
+        //the slope of the fit, 0 when events look free
+        double perEventTime() {
+            double meanCount = sumCount / weight;
+            double meanTime = sumTime / weight;
+            double variance = sumCountSquared / weight - meanCount * meanCount;
+            double slope;
+            if (variance >= MIN_COUNT_VARIANCE) {
+                slope = (sumCountTime / weight - meanCount * meanTime) / variance;
+            } else {
+                //every batch was about the same size, so take the fastest upload as the round trip
+                slope = (meanTime - minTime) / meanCount;
+            }
+            return Math.max(0, slope);
+        }
+
+        //the intercept of the fit
+        double latency(double perEventTime) {
+            double meanTime = sumTime / weight;
+            return Math.max(0, Math.min(meanTime, meanTime - perEventTime * sumCount / weight));
+        }
+    }
+}
@@ -11,16 +11,20 @@
  */
 package com.quantcast.measurement.service;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.os.Build;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.UUID;
 
 class QCUtility {
@@ -30,7 +34,10 @@ class QCUtility {
 
     public static final String API_VERSION = "1_5_2";
 
-    private static final long[] HASH_CONSTANTS = {0x811c9dc5, 0xc9dc5118};
+    //the hash is always exactly these two passes multiplied together.  Both are int literals on purpose,
+    //they widen with sign extension and existing hashes depend on it
+    private static final long FIRST_HASH_SEED = 0x811c9dc5;
+    private static final long SECOND_HASH_SEED = 0xc9dc5118;
 
     private static final String SHARED_PREFERENCES_NAME = "com.quantcast.measurement.service";
     private static final String INSTALL_ID_PREF_NAME = "applicationId";
@@ -38,33 +45,75 @@ class QCUtility {
 
 
     private static final Object APPLICATION_ID_LOCK = new Object();
+    //the install id and ad preference are read for every event, so they are kept in memory and written through
+    private static volatile String cachedInstallId;
+    private static volatile Boolean cachedAdPref;
+
+    //salted hashes of the device and install ids, the same handful of values are hashed for every uploaded event
+    private static final int SALTED_HASH_CACHE_SIZE = 16;
+    private static final Map<String, String> SALTED_HASH_CACHE = new HashMap<String, String>();
+    private static String saltedHashCacheSalt;
 
     private static final String HTTP_SCHEME = "http://";
     private static final String HTTPS_SCHEME = "https://";
 
+    //both hash passes run together in one loop over the string, nothing is allocated but the result
     static String applyHash(String string) {
         if (string == null) return null;
 
-        double[] hashedStrings = new double[HASH_CONSTANTS.length];
-        for (int i = 0; i < hashedStrings.length; i++) {
-            hashedStrings[i] = applyUserHash(HASH_CONSTANTS[i], string);
+        long hash0 = FIRST_HASH_SEED;
+        long hash1 = SECOND_HASH_SEED;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            hash0 = applyUserHash(hash0, c);
+            hash1 = applyUserHash(hash1, c);
         }
 
-        double product = 1;
-        for (double hashedString : hashedStrings) {
-            product *= hashedString;
+        double product = (double) hash0 * (double) hash1;
+        return Long.toHexString(Math.round(Math.abs(product) / 65536d));
+    }
+
+    //hashes each string into the matching slot of hashes, which must be at least as long as strings
+    static void applyHash(String[] strings, String[] hashes) {
+        for (int i = 0; i < strings.length; i++) {
+            hashes[i] = applyHash(strings[i]);
         }
+    }
 
-        return Long.toHexString(Math.round(Math.abs(product) / 65536d));
+    //same result as applyHash(value + salt), remembered until the salt changes or the cache is cleared
+    static String applySaltedHash(String value, String salt) {
+        if (value == null || salt == null) return applyHash(value + salt);
+
+        synchronized (SALTED_HASH_CACHE) {
+            if (!salt.equals(saltedHashCacheSalt)) {
+                SALTED_HASH_CACHE.clear();
+                saltedHashCacheSalt = salt;
+            }
+            String hashed = SALTED_HASH_CACHE.get(value);
+            if (hashed == null) {
+                hashed = applyHash(value + salt);
+                if (SALTED_HASH_CACHE.size() >= SALTED_HASH_CACHE_SIZE) {
+                    SALTED_HASH_CACHE.clear();
+                }
+                SALTED_HASH_CACHE.put(value, hashed);
+            }
+            return hashed;
+        }
     }
 
-    private static long applyUserHash(long hashConstant, String string) {
-        for (int i = 0; i < string.length(); i++) {
-            int h32 = (int) hashConstant; // javascript only does bit shifting on 32 bits
-            h32 ^= string.charAt(i);
-            hashConstant = h32;
-            hashConstant += (long) (h32 << 1) + (h32 << 4) + (h32 << 7) + (h32 << 8) + (h32 << 24);
+    //forget every remembered id hash, called whenever the ids themselves are reset
+    static void clearSaltedHashCache() {
+        synchronized (SALTED_HASH_CACHE) {
+            SALTED_HASH_CACHE.clear();
+            saltedHashCacheSalt = null;
         }
+    }
+
+    private static long applyUserHash(long hashConstant, char c) {
+        int h32 = (int) hashConstant; // javascript only does bit shifting on 32 bits
+        h32 ^= c;
+        hashConstant = h32;
+        hashConstant += (long) (h32 << 1) + (h32 << 4) + (h32 << 7) + (h32 << 8) + (h32 << 24);
         return hashConstant;
     }
 
@@ -109,44 +158,74 @@ class QCUtility {
     }
 
     protected static String getAppInstallId(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        String installId = sharedPreferences.getString(INSTALL_ID_PREF_NAME, null);
-
+        String installId = cachedInstallId;
         if (installId == null) {
-            installId = generateAndSaveAppInstallId(sharedPreferences);
+            installId = loadAppInstallId(context);
         }
-
         return installId;
     }
 
-    private static String generateAndSaveAppInstallId(SharedPreferences sharedPreferences) {
+    private static String loadAppInstallId(Context context) {
         synchronized (APPLICATION_ID_LOCK) {
+            if (cachedInstallId != null) return cachedInstallId;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
             String installId = sharedPreferences.getString(INSTALL_ID_PREF_NAME, null);
 
             if (installId == null) {
                 installId = generateUniqueId();
                 QCLog.i(TAG, "Saving install id:" + installId + ".");
-                sharedPreferences.edit().putString(INSTALL_ID_PREF_NAME, installId).commit();
+                savePreferences(sharedPreferences.edit().putString(INSTALL_ID_PREF_NAME, installId));
             }
 
+            cachedInstallId = installId;
             return installId;
         }
     }
 
     static void saveUserAdPref(Context context, boolean userAdPref) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        QCLog.i(TAG, "Saving advertising preference");
-        sharedPreferences.edit().putBoolean(USER_AD_PREF_NAME, userAdPref).commit();
+        synchronized (APPLICATION_ID_LOCK) {
+            if (cachedAdPref != null && cachedAdPref == userAdPref) return;
+
+            SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+            QCLog.i(TAG, "Saving advertising preference");
+            cachedAdPref = userAdPref;
+            savePreferences(sharedPreferences.edit().putBoolean(USER_AD_PREF_NAME, userAdPref));
+        }
     }
 
     static boolean getUserAdPref(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        return sharedPreferences.getBoolean(USER_AD_PREF_NAME, false);
+        Boolean adPref = cachedAdPref;
+        if (adPref == null) {
+            synchronized (APPLICATION_ID_LOCK) {
+                if (cachedAdPref == null) {
+                    SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+                    cachedAdPref = sharedPreferences.getBoolean(USER_AD_PREF_NAME, false);
+                }
+                adPref = cachedAdPref;
+            }
+        }
+        return adPref;
     }
 
     protected static void dumpAppInstallID(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        sharedPreferences.edit().remove(INSTALL_ID_PREF_NAME).commit();
+        synchronized (APPLICATION_ID_LOCK) {
+            cachedInstallId = null;
+            SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+            savePreferences(sharedPreferences.edit().remove(INSTALL_ID_PREF_NAME));
+        }
+        clearSaltedHashCache();
+    }
+
+    //writes to shared preferences without waiting on the disk where the platform allows it.
+    //Callers keep the order of their own writes, the identity writes above happen under APPLICATION_ID_LOCK
+    @TargetApi(9)
+    static void savePreferences(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
     }
 
     protected static String addScheme(String schemelessUrl) {
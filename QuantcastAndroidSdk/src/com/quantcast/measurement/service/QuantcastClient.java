@@ -216,6 +216,111 @@ public class QuantcastClient {
         QCMeasurement.INSTANCE.setUploadEventCount(uploadEventCount);
     }
 
+    /**
+     * Set the number of events required to trigger an upload while the device is on a metered network, such as cellular.
+     * Uploads cost the user data on these networks, so a higher count here means fewer, larger uploads.
+     * By default the count set with setUploadEventCount is used on every network.
+     *
+     * @param meteredUploadEventCount The number of events required to trigger an upload on a metered network.
+     *                                This must be greater than 1 and less than or equal to 200.
+     */
+    public static void setMeteredUploadEventCount(int meteredUploadEventCount) {
+        QCMeasurement.INSTANCE.setMeteredUploadEventCount(meteredUploadEventCount);
+    }
+
+    /**
+     * Control whether events are only uploaded on unmetered networks, such as Wi-Fi.  When set, session events
+     * like the one sent by activityStop are still uploaded on a metered network, and everything else waits until
+     * the device moves to an unmetered network.
+     * This is defaulted to false
+     *
+     * @param uploadingOnlyWhenUnmetered Whether or not uploads other than session events wait for an unmetered network.
+     */
+    public static void setUploadingOnlyWhenUnmetered(boolean uploadingOnlyWhenUnmetered) {
+        QCMeasurement.INSTANCE.setUploadsOnlyWhenUnmetered(uploadingOnlyWhenUnmetered);
+    }
+
+    /**
+     * Set the maximum number of logged events that are saved together in a single write.
+     * Events logged in a burst are held in memory and committed to storage at once, which saves disk writes.
+     * This is defaulted to 50
+     *
+     * @param maxBatchSize The maximum number of events written at once.  A value of 1 writes every event as soon as it is logged.
+     */
+    public static void setEventBatchSize(int maxBatchSize) {
+        QCMeasurement.INSTANCE.setEventBatchSize(maxBatchSize);
+    }
+
+    /**
+     * Set the longest time a logged event can be held in memory before it is saved to storage.
+     * Events that force an upload, such as the pause event in activityStop(), are always saved immediately.
+     * This is defaulted to 1000 milliseconds
+     *
+     * @param lingerTimeMillis The maximum time in milliseconds an event waits to be saved.  A value of 0 saves every event as soon as it is logged.
+     */
+    public static void setEventBatchLingerTime(long lingerTimeMillis) {
+        QCMeasurement.INSTANCE.setEventBatchLingerTime(lingerTimeMillis);
+    }
+
+    /**
+     * Set the most events the SDK will keep stored on the device while waiting to upload them.
+     * When the limit is reached the oldest app events are dropped first until 80% of the limit is left.
+     * Session events are always kept.
+     * Quantcast may lower or raise this limit for your app.
+     * This is defaulted to 10000
+     *
+     * @param maxStoredEvents The maximum number of stored events.  This must be at least 200.
+     */
+    public static void setMaxStoredEvents(long maxStoredEvents) {
+        QCMeasurement.INSTANCE.setMaxStoredEvents(maxStoredEvents);
+    }
+
+    /**
+     * Set the most bytes of event data the SDK will keep stored on the device while waiting to upload them.
+     * When the limit is reached the oldest app events are dropped first until 80% of the limit is left.
+     * Session events are always kept.
+     * Quantcast may lower or raise this limit for your app.
+     * This is defaulted to 5 MB
+     *
+     * @param maxStoredBytes The maximum size in bytes of stored event data.  This must be at least 64 KB.
+     */
+    public static void setMaxStoredBytes(long maxStoredBytes) {
+        QCMeasurement.INSTANCE.setMaxStoredBytes(maxStoredBytes);
+    }
+
+    /**
+     * Set how much stored event data a single upload run sends before leaving the rest of a backlog for the next upload.
+     * The limit counts the size of the events as stored on the device, which is close to but not the same as the bytes sent.
+     * This is defaulted to 1 MB
+     *
+     * @param maxDrainBytes The maximum size in bytes of stored event data uploaded in one run.  A value of 0 uploads a single batch.
+     */
+    public static void setMaxUploadBytesPerRun(long maxDrainBytes) {
+        QCMeasurement.INSTANCE.setMaxDrainBytes(maxDrainBytes);
+    }
+
+    /**
+     * Set how long a single upload run keeps sending batches before leaving the rest of a backlog for the next upload.
+     * This is defaulted to 120000 milliseconds
+     *
+     * @param maxDrainTimeMillis The maximum time in milliseconds one upload run lasts.  A value of 0 uploads a single batch.
+     */
+    public static void setMaxUploadTimePerRun(long maxDrainTimeMillis) {
+        QCMeasurement.INSTANCE.setMaxDrainTime(maxDrainTimeMillis);
+    }
+
+    /**
+     * Control how the SDK stores events until they are uploaded.  By default events are kept in a SQLite database.
+     * Apps that log events at a high rate can instead use an append-only log file, which makes saving events cheaper.
+     * This must be called before the first call to activityStart.  Events saved with one storage are not moved
+     * to the other, so pick one and keep it.
+     *
+     * @param usingEventLog true to store events in an append-only log file, false to use the database.
+     */
+    public static void setUsingEventLogStorage(boolean usingEventLog) {
+        QCMeasurement.INSTANCE.setUsesEventLog(usingEventLog);
+    }
+
     /**
      * Control whether or not the SDK will secure data uploads using SSl/TLS.
      *
@@ -229,6 +334,21 @@ public class QuantcastClient {
         return QCMeasurement.INSTANCE.usesSecureConnection();
     }
 
+    /**
+     * Control whether or not the SDK will gzip data uploads.  Compressed uploads are much smaller, which saves
+     * cellular data for your users.  Small uploads are always sent uncompressed.
+     * This is defaulted to false
+     *
+     * @param usingUploadCompression Whether or not the SDK will compress data uploads.
+     */
+    public static void setUsingUploadCompression(boolean usingUploadCompression) {
+        QCMeasurement.INSTANCE.setUsesUploadCompression(usingUploadCompression);
+    }
+
+    public static boolean isUsingUploadCompression() {
+        return QCMeasurement.INSTANCE.usesUploadCompression();
+    }
+
     /**
      * Show the About Quantcast Screen.
      *